@@ -27,5 +27,34 @@ public class Constants {
     /** Milliseconds to pause between successive calls (50 ms = 20 req/s). */
     public static final long REQUEST_DELAY_MS = 50L;
 
+    /** Requests in flight when a run starts; the adaptive limiter grows it from here. */
+    public static final int INITIAL_CONCURRENCY = 2;
+    /** Upper bound for concurrent API requests (-Decfr.maxConcurrency=...). */
+    public static final int MAX_CONCURRENCY = Integer.getInteger("ecfr.maxConcurrency", 8);
+
+    /** Byte budget of the shared chapter content cache (override with -Decfr.cache.bytes=...). */
+    public static final long CONTENT_CACHE_BYTES = Long.getLong("ecfr.cache.bytes", 256L * 1024 * 1024);
+    /** Hold cached chapter content in direct (off-heap) buffers (-Decfr.cache.offheap=true). */
+    public static final boolean CONTENT_CACHE_OFF_HEAP = Boolean.getBoolean("ecfr.cache.offheap");
+
+    /** A sharded worker's lease on a title expires after this long without a heartbeat (-Decfr.leaseTtlMs=...). */
+    public static final long LEASE_TTL_MS = Long.getLong("ecfr.leaseTtlMs", 60_000L);
+
+    /** A sharded worker gives up on a title after failing it this many times (-Decfr.leaseAttempts=...). */
+    public static final int LEASE_ATTEMPTS = Integer.getInteger("ecfr.leaseAttempts", 3);
+
+    /** Minutes between two polls of {@code titles.json} in {@code --watch} mode (-Decfr.watchIntervalMinutes=...). */
+    public static final int WATCH_INTERVAL_MINUTES = Integer.getInteger("ecfr.watchIntervalMinutes", 60);
+
+    /** Title XML at least this large is fetched in parallel byte ranges when the server allows it (-Decfr.rangedMinBytes=...). */
+    public static final long RANGED_DOWNLOAD_MIN_BYTES = Long.getLong("ecfr.rangedMinBytes", 32L * 1024 * 1024);
+    /** Size of one byte range of a ranged download (-Decfr.rangeChunkBytes=...). */
+    public static final long RANGED_CHUNK_BYTES = Long.getLong("ecfr.rangeChunkBytes", 8L * 1024 * 1024);
+
+    /** Where the metadata responses (agencies, titles, versions) are cached between runs. */
+    public static final Path HTTP_CACHE_DIRECTORY = OUTPUT_ROOT.resolve(".http-cache");
+    /** Cached metadata is used without revalidation for this long; negative disables the cache (-Decfr.httpCacheTtlMinutes=...). */
+    public static final long HTTP_CACHE_TTL_MINUTES = Long.getLong("ecfr.httpCacheTtlMinutes", 6 * 60L);
+
 
 }
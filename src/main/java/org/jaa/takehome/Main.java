@@ -1,16 +1,40 @@
 package org.jaa.takehome;
 
+import org.jaa.takehome.analytics.CitationGraph;
+import org.jaa.takehome.analytics.NearDuplicateDetector;
 import org.jaa.takehome.descriptor.AgencyDescriptor;
+import org.jaa.takehome.descriptor.ChapterDescriptor;
 import org.jaa.takehome.descriptor.PartDescriptor;
 import org.jaa.takehome.descriptor.TitleDescriptor;
 import org.jaa.takehome.downloader.AgencyDownloader;
+import org.jaa.takehome.downloader.DownloadPool;
+import org.jaa.takehome.downloader.ResponseCache;
 import org.jaa.takehome.downloader.TitleDownloader;
 import org.jaa.takehome.downloader.VersionerDownloader;
+import org.jaa.takehome.ingest.BulkArchiveIngester;
+import org.jaa.takehome.service.MetricsRepository;
+import org.jaa.takehome.service.QueryService;
+import org.jaa.takehome.shard.LeaseDirectory;
+import org.jaa.takehome.snapshot.DescriptorSnapshot;
+import org.jaa.takehome.xml.CitationExtractor;
+import org.jaa.takehome.xml.HierarchyExtractor;
+import org.jaa.takehome.xml.SectionDiff;
+import org.jaa.takehome.xml.TitleXmlSplitter;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.List;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Main {
+    /** Lease unit of the one-off title and agency lookup in a sharded run. */
+    private static final String SETUP_UNIT = "setup";
+
     /* --------------------------------------------------------------------- */
     /*                     ENTRY POINT (main)                               */
     /* --------------------------------------------------------------------- */
@@ -18,50 +42,469 @@ public class Main {
 
         Constants.currentWorkingDirectoryPath = Paths.get("").toAbsolutePath();
         System.out.println("Current working directory: "+Constants.currentWorkingDirectoryPath.toAbsolutePath().normalize());
+        if (args.length > 0 && "--archive".equals(args[0])) {
+            ingestArchive(args);
+            return;
+        }
+        if (args.length > 0 && "--serve".equals(args[0])) {
+            serve(args);
+            return;
+        }
+        if (args.length > 0 && "--diff".equals(args[0])) {
+            diff(args);
+            return;
+        }
+        if (args.length > 0 && "--citations".equals(args[0])) {
+            citations(args);
+            return;
+        }
+        if (args.length > 0 && "--near-duplicates".equals(args[0])) {
+            nearDuplicates(args);
+            return;
+        }
         final TitleDownloader titleDownloader;
         final VersionerDownloader versionerDownloader;
         final AgencyDownloader agencyDownloader;
         final List<AgencyDescriptor> allAgencies;
         try {
+            SyncOptions options = SyncOptions.parse(args);
+            if (options.isSelective() || options.getDate() != null) {
+                System.out.println("Selective sync: " + options);
+            }
             System.out.println("--------------------------------------------------------------------------------");
+            if (options.isWatch()) {
+                new TitleWatcher(options).run();
+                return;
+            }
 
             /* Get all titles and all details and store in fs/db*/
             titleDownloader = new TitleDownloader();
-            List<TitleDescriptor> allTitles = titleDownloader.getAllTitlesFromEndpoint();
-            if (allTitles != null && !allTitles.isEmpty()) {
-                titleDownloader.saveAllTitles(allTitles);
+            titleDownloader.setAsOfDate(options.getDate());
+            List<TitleDescriptor> allTitles;
+            List<TitleDescriptor> titles;
+            if (options.isSharded()) {
+                /* One worker resolves titles and agencies for all of them */
+                DescriptorSnapshot.Graph graph = resolveShared(options, titleDownloader);
+                allTitles = graph.getTitles();
+                titles = options.selectTitles(allTitles);
+                agencyDownloader = new AgencyDownloader(titles, options);
+                allAgencies = graph.getAgencies();
+            } else {
+                allTitles = titleDownloader.getAllTitlesFromEndpoint();
+                if (allTitles != null && !allTitles.isEmpty()) {
+                    titleDownloader.saveAllTitles(allTitles);
+                }
+                titles = options.selectTitles(allTitles);
+
+                /* get All agencies and store in fs/db - only the selected ones are looked up */
+                agencyDownloader = new AgencyDownloader(titles, options);
+                allAgencies = agencyDownloader.getAllAgencyDetailsFromEndpoint();
             }
+            if (options.hasAgencyFilter() || options.hasChapterFilter()) {
+                titles = SyncOptions.titlesReferencedBy(titles, allAgencies);
+            }
+            System.out.println("--------------------------------------------------------------------------------");
 
             versionerDownloader = new VersionerDownloader();
-            for (TitleDescriptor title : allTitles) {
-                List<PartDescriptor> partDescriptors = versionerDownloader.fetchPartsForTitle(title);
-                if (partDescriptors != null) {
-                    title.setParts(partDescriptors);
+            if (options.isSharded()) {
+                syncShared(titles, options, titleDownloader, versionerDownloader, agencyDownloader, allAgencies);
+            } else {
+                syncTitles(titles, options, titleDownloader, versionerDownloader, agencyDownloader, allAgencies);
+                if (!options.isSelective()) {
+                    DescriptorSnapshot.save(allTitles, allAgencies, DescriptorSnapshot.DEFAULT_PATH);
                 }
-                versionerDownloader.crossReferenceAllPartsForTitle(title);
             }
-            System.out.println("--------------------------------------------------------------------------------");
-            /* get All agencies and store in fs/db */
-            agencyDownloader = new AgencyDownloader(allTitles);
-            allAgencies = agencyDownloader.getAllAgencyDetailsFromEndpoint();
-            agencyDownloader.getAllPartsForAllAgenciesAndSaveXml(allAgencies);
+            System.out.println("Metadata response cache: " + ResponseCache.shared());
 
-            System.out.println("--------------------------------------------------------------------------------");
+
+        } catch (Exception e) {
+            System.out.println("\n\n");
+            System.out.flush();
+            System.out.println("Download failed: " + e.getMessage());
+            e.printStackTrace(System.out);
+            System.exit(1);
+        }
+
+    }
+
+    /* --------------------------------------------------------------------- */
+    /*   Versions, title XML and agency chapters for a list of titles         */
+    /* --------------------------------------------------------------------- */
+    /** @return the titles whose XML could not be downloaded (their chapters are fetched instead) */
+    static Set<TitleDescriptor> syncTitles(List<TitleDescriptor> titles, SyncOptions options,
+                                   TitleDownloader titleDownloader, VersionerDownloader versionerDownloader,
+                                   AgencyDownloader agencyDownloader, List<AgencyDescriptor> allAgencies)
+            throws IOException, InterruptedException {
+        DownloadPool.runAll(titles, title -> {
+            List<PartDescriptor> partDescriptors = versionerDownloader.fetchPartsForTitle(title);
+            if (partDescriptors != null) {
+                title.setParts(partDescriptors);
+            }
+            versionerDownloader.crossReferenceAllPartsForTitle(title);
+        });
+
+        System.out.println("--------------------------------------------------------------------------------");
+        List<ChapterDescriptor> missingChapters = Collections.synchronizedList(new ArrayList<>());
+        Set<TitleDescriptor> failed = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+        if (options.downloadsFullTitles()) {
             System.out.println("Downloading and saving all title XML files");
-            for (TitleDescriptor title : allTitles) {
-                titleDownloader.retrieveAndSaveTitleXml(title);
+            Map<String, Map<String, List<Path>>> targetsByTitle = AgencyDownloader.chapterTargets(allAgencies);
+            DownloadPool.runLargestFirst(titles, title -> titleSizeHint(title, allAgencies), title -> {
+                if (!titleDownloader.retrieveAndSaveTitleXml(title, titleSizeHint(title, allAgencies))) {
+                    System.out.printf("\n\033[31mTitle %s could not be downloaded\033[0m\n", title.getNumber());
+                    failed.add(title);
+                    // An older title XML may still be on disk; its chapters would be stale, so fetch them.
+                    if (!options.isDownloadChapters()) {
+                        missingChapters.addAll(chaptersIn(Collections.singletonList(title), allAgencies));
+                    }
+                    return;
+                }
+                new HierarchyExtractor().extractAndSave(TitleDownloader.titleXmlPath(title.getNumber()));
+                if (!options.isDownloadChapters()) {
+                    TitleXmlSplitter splitter = options.isSplitSections()
+                            ? TitleXmlSplitter.withPartsAndSections(TitleDownloader.titleXmlPath(title.getNumber()))
+                            : new TitleXmlSplitter();
+                    missingChapters.addAll(agencyDownloader.splitTitleXmlForAgencies(title, allAgencies, targetsByTitle,
+                                                                                     splitter));
+                }
+            });
+        }
+        if (!options.downloadsFullTitles() || options.isDownloadChapters()) {
+            /* A handful of agencies/chapters: fetching just those chapters beats downloading whole titles */
+            missingChapters.addAll(chaptersIn(titles, allAgencies));
+        }
+        System.out.println("--------------------------------------------------------------------------------");
+        /* Agency chapters: split locally from the title XML, downloaded only when that is not possible */
+        agencyDownloader.downloadChapters(missingChapters);
+        System.out.println("--------------------------------------------------------------------------------");
+        return failed;
+    }
+
+    /**
+     * Titles and agencies for a sharded run, resolved by one worker only: whoever leases
+     * {@code setup} first fetches {@code titles.json}, {@code agencies.json} and the
+     * {@code /ancestry} sizes and leaves them as a {@link DescriptorSnapshot} in the lease
+     * directory.  The other workers wait for it and load it, so N workers cost the API one
+     * round of setup requests, not N.
+     */
+    private static DescriptorSnapshot.Graph resolveShared(SyncOptions options, TitleDownloader titleDownloader)
+            throws IOException, InterruptedException {
+        Path snapshot = options.getLeaseDirectory().resolve(DescriptorSnapshot.DEFAULT_PATH.getFileName());
+        try (LeaseDirectory leases = new LeaseDirectory(options.getLeaseDirectory(), workerId(options), Constants.LEASE_TTL_MS)) {
+            while (!leases.isDone(SETUP_UNIT)) {
+                if (!leases.tryAcquire(SETUP_UNIT)) {
+                    System.out.println("Waiting for another worker to resolve titles and agencies");
+                    Thread.sleep(Math.max(1_000L, Constants.LEASE_TTL_MS / 3));
+                    continue;
+                }
+                try {
+                    List<TitleDescriptor> allTitles = titleDownloader.getAllTitlesFromEndpoint();
+                    if (allTitles == null || allTitles.isEmpty()) throw new IOException("No titles listed by the API");
+                    titleDownloader.saveAllTitles(allTitles);
+                    List<AgencyDescriptor> agencies = new AgencyDownloader(options.selectTitles(allTitles), options)
+                            .getAllAgencyDetailsFromEndpoint();
+                    DescriptorSnapshot.save(allTitles, agencies, snapshot);
+                    leases.complete(SETUP_UNIT, "");
+                } catch (IOException | InterruptedException | RuntimeException e) {
+                    leases.release(SETUP_UNIT);
+                    throw e;
+                }
             }
-            System.out.println("--------------------------------------------------------------------------------");
+        }
+        return DescriptorSnapshot.load(snapshot);
+    }
+
+    private static String workerId(SyncOptions options) {
+        return options.getWorkerId() != null ? options.getWorkerId() : LeaseDirectory.defaultWorkerId();
+    }
+
+    /**
+     * Sharded run: every title is a unit of work leased through {@code --lease-dir}, so any
+     * number of workers can run this side by side.  A worker keeps passing over the titles,
+     * picking up units that are free or whose owner stopped heart-beating, until all are done;
+     * the last one to finish merges the per-title rows into {@code output/manifest.csv}.  A title
+     * that fails is reported and released for another worker; after {@code LEASE_ATTEMPTS}
+     * failures this worker leaves it alone, and it stops once only such titles are left.
+     */
+    private static void syncShared(List<TitleDescriptor> titles, SyncOptions options,
+                                   TitleDownloader titleDownloader, VersionerDownloader versionerDownloader,
+                                   AgencyDownloader agencyDownloader, List<AgencyDescriptor> allAgencies)
+            throws IOException, InterruptedException {
+        String workerId = workerId(options);
+        List<String> units = new ArrayList<>();
+        for (TitleDescriptor title : titles) units.add(leaseUnit(title));
+        AtomicInteger completed = new AtomicInteger();
+        Map<String, Integer> failures = new ConcurrentHashMap<>();
+        try (LeaseDirectory leases = new LeaseDirectory(options.getLeaseDirectory(), workerId, Constants.LEASE_TTL_MS)) {
+            System.out.printf("Worker \033[32m%s\033[0m sharing %d titles through %s\n",
+                              workerId, titles.size(), options.getLeaseDirectory().toAbsolutePath());
+            Path manifest = Constants.OUTPUT_ROOT.resolve("manifest.csv");
+            while (!leases.mergeManifest(units, manifest)) {
+                DownloadPool.runAll(titles, title -> {
+                    String unit = leaseUnit(title);
+                    if (failures.getOrDefault(unit, 0) >= Constants.LEASE_ATTEMPTS || !leases.tryAcquire(unit)) return;
+                    String error;
+                    try {
+                        Set<TitleDescriptor> failed = syncTitles(Collections.singletonList(title), options, titleDownloader,
+                                                                 versionerDownloader, agencyDownloader, allAgencies);
+                        if (failed.isEmpty()) {
+                            leases.complete(unit, manifestRow(title, workerId));
+                            completed.incrementAndGet();
+                            return;
+                        }
+                        error = "title XML could not be downloaded";
+                    } catch (IOException | RuntimeException e) {
+                        error = e.getMessage();
+                    } catch (InterruptedException e) {
+                        leases.release(unit);
+                        throw e;
+                    }
+                    // Hand the title back so another worker (or a later pass of this one) can try it.
+                    int attempts = failures.merge(unit, 1, Integer::sum);
+                    System.out.printf("\033[31mTitle %s failed (attempt %d of %d): %s\033[0m\n",
+                                      title.getNumber(), attempts, Constants.LEASE_ATTEMPTS, error);
+                    leases.release(unit);
+                });
+                if (leases.mergeManifest(units, manifest)) break;
+                List<String> givenUp = new ArrayList<>();
+                boolean othersPending = false;
+                for (String unit : units) {
+                    if (leases.isDone(unit)) continue;
+                    if (failures.getOrDefault(unit, 0) >= Constants.LEASE_ATTEMPTS) givenUp.add(unit);
+                    else othersPending = true;
+                }
+                if (!othersPending) {
+                    System.out.printf("\033[31mWorker %s gave up on %s; manifest not written\033[0m\n", workerId, givenUp);
+                    return;
+                }
+                // The rest is leased by other workers; come back in case one of them dies.
+                Thread.sleep(Math.max(1_000L, Constants.LEASE_TTL_MS / 3));
+            }
+            System.out.printf("Worker \033[32m%s\033[0m synced %d of %d titles; manifest written to %s\n",
+                              workerId, completed.get(), titles.size(), manifest);
+        }
+    }
+
+    /**
+     * Expected size of a title's XML: the copy from the previous run if there is one, otherwise
+     * the {@code /ancestry} sizes of its agency chapters, otherwise unknown ({@code -1}).
+     */
+    private static long titleSizeHint(TitleDescriptor title, List<AgencyDescriptor> agencies) {
+        File xml = TitleDownloader.titleXmlPath(title.getNumber()).toFile();
+        if (xml.isFile()) return xml.length();
+        long size = -1;
+        for (ChapterDescriptor chapter : chaptersIn(Collections.singletonList(title), agencies)) {
+            if (chapter.getSize() > 0) size = Math.max(size, 0) + chapter.getSize();
+        }
+        return size;
+    }
 
+    private static String leaseUnit(TitleDescriptor title) {
+        return "title-" + title.getNumber();
+    }
 
+    private static String manifestRow(TitleDescriptor title, String workerId) throws IOException {
+        Path xml = TitleDownloader.titleXmlPath(title.getNumber());
+        return String.format("\"%s\",\"%s\",\"%s\",\"%s\",\"%d\"\n",
+                             title.getNumber(), title.getLatestAmendedOn(), workerId, Instant.now(),
+                             Files.exists(xml) ? Files.size(xml) : 0L);
+    }
+
+    private static List<ChapterDescriptor> chaptersIn(List<TitleDescriptor> titles, List<AgencyDescriptor> agencies) {
+        Set<TitleDescriptor> wanted = Collections.newSetFromMap(new IdentityHashMap<>());
+        wanted.addAll(titles);
+        List<ChapterDescriptor> chapters = new ArrayList<>();
+        for (AgencyDescriptor agency : agencies) {
+            for (ChapterDescriptor chapter : agency.getChapters()) {
+                if (wanted.contains(chapter.getTitleDescriptor())) chapters.add(chapter);
+            }
+        }
+        return chapters;
+    }
+
+    /* --------------------------------------------------------------------- */
+    /*   --archive <zip> [--agencies <agencies.json>] [--threads N]          */
+    /*             [--split-sections]                                        */
+    /* --------------------------------------------------------------------- */
+    private static void ingestArchive(String[] args) {
+        Path archive = null;
+        Path agencies = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<String> syncArgs = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--archive":  archive = Paths.get(args[++i]); break;
+                    case "--agencies": agencies = Paths.get(args[++i]); break;
+                    case "--threads":  threads = Integer.parseInt(args[++i]); break;
+                    case "--split-sections": syncArgs.add(args[i]); break;
+                    default: throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            SyncOptions options = SyncOptions.parse(syncArgs.toArray(new String[0]));
+            System.out.println("--------------------------------------------------------------------------------");
+            new BulkArchiveIngester(archive, agencies, threads, options).ingest();
+            System.out.println("--------------------------------------------------------------------------------");
         } catch (Exception e) {
             System.out.println("\n\n");
             System.out.flush();
-            System.out.println("Download failed: " + e.getMessage());
+            System.out.println("Archive ingestion failed: " + e.getMessage());
+            e.printStackTrace(System.out);
+            System.exit(1);
+        }
+    }
+
+    /* --------------------------------------------------------------------- */
+    /*   --serve [--port N]                                                  */
+    /* --------------------------------------------------------------------- */
+    private static void serve(String[] args) {
+        int port = 8080;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                if ("--port".equals(args[i])) port = Integer.parseInt(args[++i]);
+                else throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+            QueryService service = new QueryService(new MetricsRepository().load());
+            Runtime.getRuntime().addShutdownHook(new Thread(service::stop));
+            service.start(port);
+        } catch (Exception e) {
+            System.out.println("Query service failed: " + e.getMessage());
             e.printStackTrace(System.out);
             System.exit(1);
         }
+    }
 
+    /* --------------------------------------------------------------------- */
+    /*   --diff <old.xml> <new.xml>                                          */
+    /* --------------------------------------------------------------------- */
+    private static void diff(String[] args) {
+        try {
+            if (args.length != 3) throw new IllegalArgumentException("Usage: --diff <old.xml> <new.xml>");
+            SectionDiff.Result result = new SectionDiff().diff(Paths.get(args[1]), Paths.get(args[2]));
+            for (SectionDiff.Change change : result.getChanges()) {
+                String color = change.getKind() == SectionDiff.Kind.ADDED ? "\033[32m"
+                        : change.getKind() == SectionDiff.Kind.REMOVED ? "\033[31m" : "\033[33m";
+                System.out.printf("%s%-8s\033[0m %-14s %+,8d words  %s\n", color, change.getKind(), change.getId(),
+                                  change.getWordDelta(), change.getHeading() == null ? "" : change.getHeading());
+            }
+            System.out.println("--------------------------------------------------------------------------------");
+            System.out.printf("Sections \033[35m%,d\033[0m → \033[35m%,d\033[0m: %,d added, %,d removed, %,d modified, %,d unchanged (%+,d words)\n",
+                              result.getSectionsBefore(), result.getSectionsAfter(),
+                              result.count(SectionDiff.Kind.ADDED), result.count(SectionDiff.Kind.REMOVED),
+                              result.count(SectionDiff.Kind.MODIFIED), result.getUnchanged(), result.getWordDelta());
+        } catch (Exception e) {
+            System.out.println("Diff failed: " + e.getMessage());
+            e.printStackTrace(System.out);
+            System.exit(1);
+        }
+    }
+
+    /* --------------------------------------------------------------------- */
+    /*   --citations [<citation> ...]                                        */
+    /* --------------------------------------------------------------------- */
+    /**
+     * Without arguments, rebuild the citation graph from the stored chapters and report the
+     * most cited rules and agencies.  With citations ("40 CFR 52.21"), answer in-degree and
+     * reachability for each from the saved graph (building it first if there is none).
+     */
+    private static void citations(String[] args) {
+        try {
+            CitationGraph graph;
+            if (args.length > 1 && Files.exists(CitationGraph.DEFAULT_PATH)) {
+                graph = CitationGraph.load(CitationGraph.DEFAULT_PATH);
+            } else {
+                graph = buildCitationGraph();
+                graph.save(CitationGraph.DEFAULT_PATH);
+                graph.saveAgencyCitations(Constants.OUTPUT_ROOT.resolve("Agencies").resolve("citations.csv"));
+            }
+            if (args.length == 1) {
+                System.out.println("--------------------------------------------------------------------------------");
+                System.out.println("Most cited:");
+                for (int node : graph.topCited(20)) {
+                    System.out.printf("  %,7d  \033[35m%-16s\033[0m %s\n", graph.inDegree(node), graph.getId(node),
+                                      graph.getAgency(node) == null ? "" : graph.getAgency(node));
+                }
+                System.out.println("Agencies citing other agencies' rules:");
+                for (String agency : graph.getAgencies()) {
+                    Map<String, Integer> cited = new LinkedHashMap<>(graph.getAgencyCitations(agency));
+                    cited.remove(agency);
+                    if (cited.isEmpty()) continue;
+                    System.out.printf("  \033[34m%s\033[0m → %s\n", agency, cited);
+                }
+            }
+            for (int i = 1; i < args.length; i++) {
+                long started = System.nanoTime();
+                int node = graph.find(args[i]);
+                if (node < 0) {
+                    System.out.printf("\033[31m%s is not in the citation graph\033[0m\n", args[i]);
+                    continue;
+                }
+                int reachable = graph.reachable(node).cardinality();
+                System.out.printf("\033[35m%s\033[0m: cited by %,d, cites %,d, depends on %,d node(s) (%,d µs)\n",
+                                  graph.getId(node), graph.inDegree(node), graph.outDegree(node), reachable,
+                                  (System.nanoTime() - started) / 1000);
+            }
+        } catch (Exception e) {
+            System.out.println("Citation graph failed: " + e.getMessage());
+            e.printStackTrace(System.out);
+            System.exit(1);
+        }
+    }
+
+    /** One streaming pass over every stored chapter. */
+    private static CitationGraph buildCitationGraph() throws IOException {
+        MetricsRepository repository = new MetricsRepository().load();
+        CitationGraph.Builder builder = new CitationGraph.Builder();
+        CitationExtractor extractor = new CitationExtractor();
+        long started = System.currentTimeMillis();
+        for (String slug : repository.getAgencySlugs()) {
+            int agency = builder.agency(slug);
+            for (MetricsRepository.ChapterEntry entry : repository.getChaptersForAgency(slug)) {
+                extractor.extract(entry.getFile(), entry.getTitleNumber(), agency, builder);
+            }
+        }
+        CitationGraph graph = builder.build();
+        System.out.printf("Extracted \033[32m%,d\033[0m citations (%,d distinct) between %,d nodes in %,d ms\n",
+                          extractor.getCitations(), graph.getEdgeCount(), graph.size(),
+                          System.currentTimeMillis() - started);
+        return graph;
+    }
+
+    /* --------------------------------------------------------------------- */
+    /*   --near-duplicates [--threshold 0.8]                                 */
+    /* --------------------------------------------------------------------- */
+    private static void nearDuplicates(String[] args) {
+        double threshold = 0.8;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                if ("--threshold".equals(args[i])) threshold = Double.parseDouble(args[++i]);
+                else throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+            MetricsRepository repository = new MetricsRepository().load();
+            NearDuplicateDetector detector = new NearDuplicateDetector(threshold);
+            long started = System.currentTimeMillis();
+            for (String slug : repository.getAgencySlugs()) {
+                for (MetricsRepository.ChapterEntry entry : repository.getChaptersForAgency(slug)) {
+                    detector.add(entry.getFile(), slug, entry.getTitleNumber(), entry.getChapterName());
+                }
+            }
+            List<NearDuplicateDetector.Cluster> clusters = detector.detect();
+            System.out.printf("Sketched \033[32m%,d\033[0m sections (%,d too short) and found \033[33m%,d\033[0m cross-agency cluster(s) in %,d ms\n",
+                              detector.getSectionCount(), detector.getSkipped(), clusters.size(),
+                              System.currentTimeMillis() - started);
+            Path csv = Constants.OUTPUT_ROOT.resolve("Agencies").resolve("near-duplicates.csv");
+            NearDuplicateDetector.write(clusters, csv);
+            System.out.println("--------------------------------------------------------------------------------");
+            for (NearDuplicateDetector.Cluster cluster : clusters.subList(0, Math.min(20, clusters.size()))) {
+                System.out.printf("%,5d sections, %d agencies: \033[35m%s\033[0m\n", cluster.getMembers().size(),
+                                  cluster.getAgencies().size(), cluster.getMembers().subList(0, Math.min(4, cluster.getMembers().size())));
+            }
+            System.out.println("Clusters written to " + csv);
+        } catch (Exception e) {
+            System.out.println("Near-duplicate detection failed: " + e.getMessage());
+            e.printStackTrace(System.out);
+            System.exit(1);
+        }
     }
 
 }
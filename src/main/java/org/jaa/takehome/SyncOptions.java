@@ -0,0 +1,163 @@
+package org.jaa.takehome;
+
+import org.jaa.takehome.descriptor.AgencyDescriptor;
+import org.jaa.takehome.descriptor.ChapterDescriptor;
+import org.jaa.takehome.descriptor.TitleDescriptor;
+import org.jaa.takehome.utilities.Utils;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Command-line selection for a sync run.
+ *
+ * <pre>
+ *   --title 1,40          only these title numbers
+ *   --agency epa,ofr      only these agencies (API slug or slugified name)
+ *   --chapter I,IV        only these chapter numbers
+ *   --date 2024-05-17     fetch content as of this date instead of each title's latest
+ *   --download-chapters   download agency chapters with ?chapter= instead of splitting title XML
+ *   --split-sections      also write every part and section of the downloaded titles
+ *   --lease-dir DIR       share the titles with other workers using the leases in DIR
+ *   --worker ID           worker id for the leases (default pid@host)
+ *   --watch               keep running, re-syncing only titles that changed since the last poll
+ *   --interval MINUTES    minutes between two polls in watch mode
+ * </pre>
+ * {@code -Decfr.downloadChapters=true} and {@code -Decfr.splitSections=true} switch the two
+ * flags on by default; this is the only place those properties are read.
+ * The filters are consulted before any request is planned: unselected titles never get a
+ * {@code /versions} or full-XML request, unselected agencies and chapters never get an
+ * {@code /ancestry} lookup.  Without any filter the run covers the whole corpus, as before.
+ */
+public class SyncOptions {
+
+    private final Set<String> titles = new LinkedHashSet<>();
+    private final Set<String> agencies = new LinkedHashSet<>();
+    private final Set<String> chapters = new LinkedHashSet<>();
+    private String date;
+    private boolean downloadChapters = Boolean.getBoolean("ecfr.downloadChapters");
+    private boolean splitSections = Boolean.getBoolean("ecfr.splitSections");
+    private Path leaseDirectory;
+    private String workerId;
+    private boolean watch;
+    private int watchIntervalMinutes = Constants.WATCH_INTERVAL_MINUTES;
+
+    /** Options selecting everything. */
+    public static SyncOptions all() {
+        return new SyncOptions();
+    }
+
+    public static SyncOptions parse(String[] args) {
+        SyncOptions options = new SyncOptions();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--title":   addAll(options.titles, value(args, ++i), false); break;
+                case "--agency":  addAll(options.agencies, value(args, ++i), true); break;
+                case "--chapter": addAll(options.chapters, value(args, ++i), false); break;
+                case "--date":    options.date = value(args, ++i); break;
+                case "--download-chapters": options.downloadChapters = true; break;
+                case "--split-sections":    options.splitSections = true; break;
+                case "--lease-dir": options.leaseDirectory = Paths.get(value(args, ++i)); break;
+                case "--worker":    options.workerId = value(args, ++i); break;
+                case "--watch":     options.watch = true; break;
+                case "--interval":  options.watchIntervalMinutes = Integer.parseInt(value(args, ++i)); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (options.date != null && !options.date.matches("\\d{4}-\\d{2}-\\d{2}")) {
+            throw new IllegalArgumentException("--date must be YYYY-MM-DD, got " + options.date);
+        }
+        if (options.watchIntervalMinutes < 1) {
+            throw new IllegalArgumentException("--interval must be at least 1 minute");
+        }
+        return options;
+    }
+
+    /* --------------------------------------------------------------- */
+    public boolean isSelective() {
+        return !titles.isEmpty() || !agencies.isEmpty() || !chapters.isEmpty();
+    }
+
+    public boolean hasTitleFilter() { return !titles.isEmpty(); }
+    public boolean hasAgencyFilter() { return !agencies.isEmpty(); }
+    public boolean hasChapterFilter() { return !chapters.isEmpty(); }
+
+    public boolean includesTitle(TitleDescriptor title) {
+        return titles.isEmpty() || titles.contains(title.getNumber().trim());
+    }
+
+    /** Matches the API slug or the slugified name used for the output directory. */
+    public boolean includesAgency(String apiSlug, String name) {
+        if (agencies.isEmpty()) return true;
+        return (apiSlug != null && agencies.contains(apiSlug.toLowerCase(Locale.ROOT)))
+                || (name != null && agencies.contains(Utils.slugify(name)));
+    }
+
+    public boolean includesChapter(String chapterName) {
+        return chapters.isEmpty() || chapters.contains(chapterName.trim());
+    }
+
+    /** The titles left after the title filter. */
+    public List<TitleDescriptor> selectTitles(List<TitleDescriptor> allTitles) {
+        List<TitleDescriptor> selected = new ArrayList<>();
+        for (TitleDescriptor title : allTitles) {
+            if (includesTitle(title)) selected.add(title);
+        }
+        return selected;
+    }
+
+    /** The titles that at least one of the (already filtered) agencies has a chapter in. */
+    public static List<TitleDescriptor> titlesReferencedBy(List<TitleDescriptor> titles, List<AgencyDescriptor> agencies) {
+        Set<TitleDescriptor> referenced = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (AgencyDescriptor agency : agencies) {
+            for (ChapterDescriptor chapter : agency.getChapters()) referenced.add(chapter.getTitleDescriptor());
+        }
+        List<TitleDescriptor> selected = new ArrayList<>();
+        for (TitleDescriptor title : titles) {
+            if (referenced.contains(title)) selected.add(title);
+        }
+        return selected;
+    }
+
+    /**
+     * Whole titles are only worth downloading when titles were asked for (or nothing was
+     * filtered); a refresh of a few agencies or chapters fetches just those chapters.
+     */
+    public boolean downloadsFullTitles() {
+        return hasTitleFilter() || (!hasAgencyFilter() && !hasChapterFilter());
+    }
+
+    /** As-of date for content requests, or {@code null} for each title's own latest date. */
+    public String getDate() { return date; }
+    public boolean isDownloadChapters() { return downloadChapters; }
+    public boolean isSplitSections() { return splitSections; }
+    /** Lease directory shared with the other workers, or {@code null} for a single-process run. */
+    public Path getLeaseDirectory() { return leaseDirectory; }
+    public boolean isSharded() { return leaseDirectory != null; }
+    public String getWorkerId() { return workerId; }
+    public boolean isWatch() { return watch; }
+    public int getWatchIntervalMinutes() { return watchIntervalMinutes; }
+
+    @Override
+    public String toString() {
+        return "SyncOptions{titles=" + (titles.isEmpty() ? "all" : titles)
+                + ", agencies=" + (agencies.isEmpty() ? "all" : agencies)
+                + ", chapters=" + (chapters.isEmpty() ? "all" : chapters)
+                + ", date=" + (date == null ? "latest" : date) + "}";
+    }
+
+    /* --------------------------------------------------------------- */
+    private static String value(String[] args, int i) {
+        if (i >= args.length) throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+        return args[i];
+    }
+
+    private static void addAll(Set<String> target, String csv, boolean lowerCase) {
+        for (String item : csv.split(",")) {
+            String v = item.trim();
+            if (v.matches("\\d+")) v = String.valueOf(Integer.parseInt(v));   // "05" → "5"
+            if (!v.isEmpty()) target.add(lowerCase ? v.toLowerCase(Locale.ROOT) : v);
+        }
+    }
+}
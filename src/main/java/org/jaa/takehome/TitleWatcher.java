@@ -0,0 +1,239 @@
+package org.jaa.takehome;
+
+import org.jaa.takehome.descriptor.AgencyDescriptor;
+import org.jaa.takehome.descriptor.TitleDescriptor;
+import org.jaa.takehome.downloader.AgencyDownloader;
+import org.jaa.takehome.downloader.TitleDownloader;
+import org.jaa.takehome.downloader.VersionerDownloader;
+import org.jaa.takehome.snapshot.DescriptorSnapshot;
+import org.jaa.takehome.utilities.Utils;
+import org.jaa.takehome.xml.SectionDiff;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+import static org.jaa.takehome.Constants.OUTPUT_ROOT;
+
+/**
+ * Long-running sync ({@code --watch}): polls {@code titles.json} every {@code --interval}
+ * minutes and refreshes only the titles whose {@code latestAmendedOn} or
+ * {@code latestIssueDate} moved since they were last synced.  eCFR advances
+ * {@code upToDateAsOf} every business day whether or not anything was amended, so a title
+ * where only that date moved is a metadata update: it is recorded (and {@code titles.csv}
+ * rewritten as on every poll), but nothing is downloaded again.
+ *
+ * <p>The downloaders, and with them the HTTP connections, live for the whole process, and
+ * so do the {@link TitleDescriptor}s: a poll updates them in place, so the agency chapters
+ * resolved once keep pointing at the right titles.  Agencies are looked up again only when
+ * new titles appear or the list is a day old.  What was last synced is kept in
+ * {@code output/AllTitles/synced.csv}, so a restarted watcher carries on where it stopped
+ * instead of downloading everything again.  When a title's previous XML is on disk, the
+ * refresh is followed by a {@link SectionDiff} summary.
+ */
+public class TitleWatcher {
+
+    private static final long AGENCY_REFRESH_MS = 24L * 60 * 60 * 1000;
+
+    private final SyncOptions options;
+    private final TitleDownloader titleDownloader = new TitleDownloader();
+    private final VersionerDownloader versionerDownloader = new VersionerDownloader();
+    /** Every title seen so far, by number; the descriptors are updated, never replaced. */
+    private final Map<String, TitleDescriptor> titles = new LinkedHashMap<>();
+    /** Title number → "latestAmendedOn|latestIssueDate" as of its last successful sync. */
+    private final Map<String, String> synced = new LinkedHashMap<>();
+    /** Title number → the last {@code upToDateAsOf} seen for a synced title. */
+    private final Map<String, String> upToDate = new LinkedHashMap<>();
+    private final Path stateFile = OUTPUT_ROOT.resolve("AllTitles").resolve("synced.csv");
+    private AgencyDownloader agencyDownloader;
+    private List<AgencyDescriptor> agencies;
+    private long agenciesLoadedAt;
+
+    public TitleWatcher(SyncOptions options) {
+        this.options = options;
+        titleDownloader.setAsOfDate(options.getDate());
+        // Polling is the point of watch mode: always ask the server (a 304 when nothing moved).
+        titleDownloader.setTitlesMaxAgeMs(0);
+        versionerDownloader.setMaxAgeMs(0);
+    }
+
+    /* --------------------------------------------------------------- */
+    /** Poll forever; a failed cycle is reported and retried at the next one. */
+    public void run() throws IOException, InterruptedException {
+        loadState();
+        long intervalMs = options.getWatchIntervalMinutes() * 60_000L;
+        System.out.printf("Watching titles every \033[32m%d\033[0m minute(s); %d title(s) synced before\n",
+                          options.getWatchIntervalMinutes(), synced.size());
+        while (!Thread.currentThread().isInterrupted()) {
+            long started = System.currentTimeMillis();
+            try {
+                poll();
+            } catch (IOException | RuntimeException e) {
+                System.out.println("\033[31mSync cycle failed: " + e.getMessage() + "\033[0m");
+                e.printStackTrace(System.out);
+            }
+            Thread.sleep(Math.max(0, intervalMs - (System.currentTimeMillis() - started)));
+        }
+    }
+
+    /** One cycle: list the titles, then sync those that changed. */
+    public void poll() throws IOException, InterruptedException {
+        System.out.println("--------------------------------------------------------------------------------");
+        List<TitleDescriptor> listed = titleDownloader.getAllTitlesFromEndpoint();
+        if (listed == null || listed.isEmpty()) return;
+        boolean newTitles = false;
+        for (TitleDescriptor fresh : listed) {
+            TitleDescriptor title = titles.get(fresh.getNumber());
+            if (title == null) {
+                titles.put(fresh.getNumber(), fresh);
+                newTitles = true;
+            } else {
+                title.setName(fresh.getName());
+                title.setLatestAmendedOn(fresh.getLatestAmendedOn());
+                title.setLatestIssueDate(fresh.getLatestIssueDate());
+                title.setUpToDateAsOf(fresh.getUpToDateAsOf());
+                title.setReserved(fresh.isReserved());
+            }
+        }
+        titleDownloader.saveAllTitles(new ArrayList<>(titles.values()));
+
+        List<TitleDescriptor> changed = new ArrayList<>();
+        List<TitleDescriptor> metadataOnly = new ArrayList<>();
+        for (TitleDescriptor title : options.selectTitles(new ArrayList<>(titles.values()))) {
+            boolean missingXml = options.downloadsFullTitles()
+                    && !Files.exists(TitleDownloader.titleXmlPath(title.getNumber()));
+            if (missingXml || !fingerprint(title).equals(synced.get(title.getNumber()))) {
+                changed.add(title);
+            } else if (!Objects.equals(title.getUpToDateAsOf(), upToDate.get(title.getNumber()))) {
+                metadataOnly.add(title);
+            }
+        }
+        if (!metadataOnly.isEmpty()) {
+            for (TitleDescriptor title : metadataOnly) upToDate.put(title.getNumber(), title.getUpToDateAsOf());
+            saveState();
+            System.out.printf("%d title(s) only moved their up-to-date date, no re-sync needed: %s\n",
+                              metadataOnly.size(), numbers(metadataOnly));
+        }
+        if (changed.isEmpty()) {
+            System.out.println("No title changed since the last sync");
+            return;
+        }
+
+        if (agencies == null || newTitles || System.currentTimeMillis() - agenciesLoadedAt > AGENCY_REFRESH_MS) {
+            agencyDownloader = new AgencyDownloader(options.selectTitles(new ArrayList<>(titles.values())), options);
+            agencies = agencyDownloader.getAllAgencyDetailsFromEndpoint();
+            agenciesLoadedAt = System.currentTimeMillis();
+        }
+        if (options.hasAgencyFilter() || options.hasChapterFilter()) {
+            changed = SyncOptions.titlesReferencedBy(changed, agencies);
+        }
+        System.out.printf("\033[33m%d\033[0m title(s) changed: %s\n", changed.size(), numbers(changed));
+
+        Map<TitleDescriptor, Path> previous = keepPreviousXml(changed);
+        try {
+            Set<TitleDescriptor> failed = Main.syncTitles(changed, options, titleDownloader, versionerDownloader,
+                                                          agencyDownloader, agencies);
+            // A title that failed keeps its old fingerprint, so the next cycle tries it again.
+            for (TitleDescriptor title : changed) {
+                if (failed.contains(title)) continue;
+                synced.put(title.getNumber(), fingerprint(title));
+                upToDate.put(title.getNumber(), title.getUpToDateAsOf());
+            }
+            saveState();
+            if (!options.isSelective()) {
+                DescriptorSnapshot.save(new ArrayList<>(titles.values()), agencies, DescriptorSnapshot.DEFAULT_PATH);
+            }
+            Map<TitleDescriptor, Path> refreshed = new LinkedHashMap<>(previous);
+            refreshed.keySet().removeAll(failed);
+            reportDiffs(refreshed);
+            if (!failed.isEmpty()) {
+                System.out.printf("\033[31m%d\033[0m title(s) not refreshed, retried next cycle: %s\n",
+                                  failed.size(), numbers(new ArrayList<>(failed)));
+            }
+        } finally {
+            restorePreviousXml(previous);
+        }
+    }
+
+    /* --------------------------------------------------------------- */
+    private static String fingerprint(TitleDescriptor title) {
+        return title.getLatestAmendedOn() + "|" + title.getLatestIssueDate();
+    }
+
+    private static List<String> numbers(List<TitleDescriptor> titles) {
+        List<String> numbers = new ArrayList<>();
+        for (TitleDescriptor title : titles) numbers.add(title.getNumber());
+        return numbers;
+    }
+
+    /**
+     * Keep the current XML of each title aside so the refreshed one can be compared with it.
+     * A hard link costs nothing, and the download replaces the title file by renaming a new one
+     * over it, which leaves the link's content alone; where links are not supported the file is
+     * moved aside instead.
+     */
+    private Map<TitleDescriptor, Path> keepPreviousXml(List<TitleDescriptor> changed) throws IOException {
+        Map<TitleDescriptor, Path> previous = new LinkedHashMap<>();
+        if (!options.downloadsFullTitles()) return previous;
+        for (TitleDescriptor title : changed) {
+            Path xml = TitleDownloader.titleXmlPath(title.getNumber());
+            if (Files.exists(xml)) {
+                Path old = xml.resolveSibling("title-" + title.getNumber() + ".previous.xml");
+                Files.deleteIfExists(old);
+                try {
+                    Files.createLink(old, xml);
+                } catch (UnsupportedOperationException | IOException e) {
+                    Files.move(xml, old, StandardCopyOption.ATOMIC_MOVE);
+                }
+                previous.put(title, old);
+            }
+        }
+        return previous;
+    }
+
+    /** Drop the kept copies; one whose title has no XML any more (a failed download) is put back. */
+    private void restorePreviousXml(Map<TitleDescriptor, Path> previous) throws IOException {
+        for (Path old : previous.values()) {
+            Path xml = old.resolveSibling(old.getFileName().toString().replace(".previous.xml", ".xml"));
+            if (Files.exists(xml)) Files.delete(old);
+            else Files.move(old, xml, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private void reportDiffs(Map<TitleDescriptor, Path> previous) throws IOException {
+        SectionDiff diff = new SectionDiff();
+        for (Map.Entry<TitleDescriptor, Path> e : previous.entrySet()) {
+            Path xml = TitleDownloader.titleXmlPath(e.getKey().getNumber());
+            if (!Files.exists(xml)) continue;
+            SectionDiff.Result result = diff.diff(e.getValue(), xml);
+            System.out.printf("Title \033[35m%s\033[0m: %,d section(s) added, %,d removed, %,d modified (%+,d words)\n",
+                              e.getKey().getNumber(), result.count(SectionDiff.Kind.ADDED),
+                              result.count(SectionDiff.Kind.REMOVED), result.count(SectionDiff.Kind.MODIFIED),
+                              result.getWordDelta());
+        }
+    }
+
+    private void loadState() throws IOException {
+        if (!Files.exists(stateFile)) return;
+        for (String line : Files.readAllLines(stateFile)) {
+            if (line.isBlank()) continue;
+            List<String> f = Utils.parseCsvLine(line);
+            synced.put(f.get(0), f.get(1));
+            if (f.size() > 2) upToDate.put(f.get(0), f.get(2));
+        }
+    }
+
+    private void saveState() throws IOException {
+        Files.createDirectories(stateFile.getParent());
+        Path partial = Files.createTempFile(stateFile.getParent(), "synced", ".csv.tmp");
+        try (PrintStream out = new PrintStream(partial.toFile())) {
+            for (Map.Entry<String, String> e : synced.entrySet()) {
+                out.printf("\"%s\",\"%s\",\"%s\"\n", e.getKey(), e.getValue(), upToDate.get(e.getKey()));
+            }
+        }
+        Files.move(partial, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,427 @@
+package org.jaa.takehome.analytics;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import static org.jaa.takehome.Constants.OUTPUT_ROOT;
+
+/**
+ * Directed graph of CFR citations between titles, parts and sections, held in compressed
+ * sparse row (CSR) form.
+ *
+ * <p>Nodes are identified as {@code "40 CFR"}, {@code "40 CFR 52"} and {@code "40 CFR 52.21"};
+ * a section's parent is its part and a part's parent its title.  Each node also records the
+ * agency whose stored chapters contain it, or {@code -1} when it was only ever cited.  The
+ * targets of node {@code n} are {@code outTargets[outOffsets[n] .. outOffsets[n + 1])}; the
+ * transpose and the parent → child rows are kept the same way, so a degree is two array reads
+ * and a reachability walk touches nothing but int arrays and a {@link BitSet}.  Repeated
+ * citations between the same two nodes count once.
+ *
+ * <p>Citations are rolled up per agency as well: {@link #getAgencyCitations} counts, for each
+ * other agency, the node-to-node citations leading from one agency's rules into its rules.
+ *
+ * <p>Only the nodes and out-rows are stored in {@code output/citations.graph}; the transpose,
+ * children and roll-ups are rebuilt in linear time when the file is mapped back.
+ */
+public final class CitationGraph {
+
+    public static final Path DEFAULT_PATH = OUTPUT_ROOT.resolve("citations.graph");
+
+    public enum Level { TITLE, PART, SECTION }
+
+    private static final byte[] MAGIC = "ECFRCITE".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+
+    private final String[] ids;
+    private final byte[] levels;
+    private final int[] parents;
+    private final int[] owners;
+    private final String[] agencies;
+    private final int[] outOffsets;
+    private final int[] outTargets;
+    private final int[] inOffsets;
+    private final int[] inSources;
+    private final int[] childOffsets;
+    private final int[] children;
+    private final int[] agencyOffsets;
+    private final int[] agencyTargets;
+    private final int[] agencyCounts;
+    private final Map<String, Integer> index;
+    private final Map<String, Integer> agencyIndex;
+
+    private CitationGraph(String[] ids, byte[] levels, int[] parents, int[] owners, String[] agencies,
+                          int[] outOffsets, int[] outTargets) {
+        this.ids = ids;
+        this.levels = levels;
+        this.parents = parents;
+        this.owners = owners;
+        this.agencies = agencies;
+        this.outOffsets = outOffsets;
+        this.outTargets = outTargets;
+
+        int n = ids.length;
+        int[][] in = transpose(n, outOffsets, outTargets);
+        this.inOffsets = in[0];
+        this.inSources = in[1];
+
+        int[] childCounts = new int[n + 1];
+        for (int parent : parents) if (parent >= 0) childCounts[parent + 1]++;
+        for (int i = 0; i < n; i++) childCounts[i + 1] += childCounts[i];
+        this.childOffsets = childCounts;
+        this.children = new int[childCounts[n]];
+        int[] fill = Arrays.copyOf(childCounts, n);
+        for (int node = 0; node < n; node++) if (parents[node] >= 0) children[fill[parents[node]]++] = node;
+
+        // Agency roll-up: one row per citing agency, one column per agency cited at least once.
+        int a = agencies.length;
+        int[][] counts = new int[a][];
+        for (int node = 0; node < n; node++) {
+            int from = owners[node];
+            if (from < 0) continue;
+            for (int e = outOffsets[node]; e < outOffsets[node + 1]; e++) {
+                int to = owners[outTargets[e]];
+                if (to < 0) continue;
+                if (counts[from] == null) counts[from] = new int[a];
+                counts[from][to]++;
+            }
+        }
+        this.agencyOffsets = new int[a + 1];
+        for (int i = 0; i < a; i++) {
+            int cells = 0;
+            if (counts[i] != null) for (int c : counts[i]) if (c > 0) cells++;
+            agencyOffsets[i + 1] = agencyOffsets[i] + cells;
+        }
+        this.agencyTargets = new int[agencyOffsets[a]];
+        this.agencyCounts = new int[agencyOffsets[a]];
+        for (int i = 0; i < a; i++) {
+            if (counts[i] == null) continue;
+            int k = agencyOffsets[i];
+            for (int j = 0; j < a; j++) {
+                if (counts[i][j] > 0) {
+                    agencyTargets[k] = j;
+                    agencyCounts[k++] = counts[i][j];
+                }
+            }
+        }
+
+        this.index = new HashMap<>(n * 2);
+        for (int node = 0; node < n; node++) index.put(ids[node], node);
+        this.agencyIndex = new HashMap<>();
+        for (int i = 0; i < a; i++) agencyIndex.put(agencies[i], i);
+    }
+
+    /* --------------------------------------------------------------- */
+    /** Canonical id of a title, part or section; {@code part} and {@code section} may be {@code null}. */
+    public static String key(String title, String part, String section) {
+        if (section != null) return title + " CFR " + section;
+        if (part != null) return title + " CFR " + part;
+        return title + " CFR";
+    }
+
+    /** Node for a citation written like "40 CFR 52.21", "40 CFR part 52" or "40 CFR", or {@code -1}. */
+    public int find(String citation) {
+        String normalized = citation.replace("§", " ")
+                .replaceAll("(?i)\\bparts?\\b", " ")
+                .replaceAll("\\s+", " ")
+                .trim();
+        return index.getOrDefault(normalized, -1);
+    }
+
+    public int size() { return ids.length; }
+    public int getEdgeCount() { return outTargets.length; }
+    public String getId(int node) { return ids[node]; }
+    public Level getLevel(int node) { return Level.values()[levels[node]]; }
+    public int getParent(int node) { return parents[node]; }
+
+    /** Slug of the agency whose stored chapters contain {@code node}, or {@code null}. */
+    public String getAgency(int node) {
+        return owners[node] < 0 ? null : agencies[owners[node]];
+    }
+
+    public int outDegree(int node) { return outOffsets[node + 1] - outOffsets[node]; }
+    /** Number of distinct nodes citing {@code node} directly. */
+    public int inDegree(int node) { return inOffsets[node + 1] - inOffsets[node]; }
+
+    /** Nodes {@code node} cites, in index order. */
+    public int[] cites(int node) {
+        return Arrays.copyOfRange(outTargets, outOffsets[node], outOffsets[node + 1]);
+    }
+
+    /** Nodes citing {@code node}, in index order. */
+    public int[] citedBy(int node) {
+        return Arrays.copyOfRange(inSources, inOffsets[node], inOffsets[node + 1]);
+    }
+
+    /**
+     * Everything {@code node} depends on: the nodes it cites, transitively.  A part or title
+     * stands for its sections, so reaching one (or starting from one) walks into its sections
+     * and on through whatever they cite.
+     */
+    public BitSet reachable(int node) {
+        BitSet seen = new BitSet(ids.length);
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = node;
+        while (top > 0) {
+            int current = stack[--top];
+            for (int pass = 0; pass < 2; pass++) {
+                int[] offsets = pass == 0 ? outOffsets : childOffsets;
+                int[] targets = pass == 0 ? outTargets : children;
+                for (int e = offsets[current]; e < offsets[current + 1]; e++) {
+                    int next = targets[e];
+                    if (seen.get(next)) continue;
+                    seen.set(next);
+                    if (top == stack.length) stack = Arrays.copyOf(stack, top * 2);
+                    stack[top++] = next;
+                }
+            }
+        }
+        return seen;
+    }
+
+    /** The {@code k} nodes with the highest in-degree, most cited first. */
+    public int[] topCited(int k) {
+        PriorityQueue<Integer> heap = new PriorityQueue<>(Comparator.comparingInt(this::inDegree));
+        for (int node = 0; node < ids.length; node++) {
+            if (inDegree(node) == 0) continue;
+            if (heap.size() < k) {
+                heap.add(node);
+            } else if (inDegree(node) > inDegree(heap.peek())) {
+                heap.poll();
+                heap.add(node);
+            }
+        }
+        int[] top = new int[heap.size()];
+        for (int i = top.length - 1; i >= 0; i--) top[i] = heap.poll();
+        return top;
+    }
+
+    public List<String> getAgencies() { return Arrays.asList(agencies); }
+
+    /** Agency slug → citations from {@code slug}'s rules into that agency's, most cited first. */
+    public Map<String, Integer> getAgencyCitations(String slug) {
+        Integer from = agencyIndex.get(slug);
+        Map<String, Integer> result = new LinkedHashMap<>();
+        if (from == null) return result;
+        Integer[] cells = new Integer[agencyOffsets[from + 1] - agencyOffsets[from]];
+        for (int i = 0; i < cells.length; i++) cells[i] = agencyOffsets[from] + i;
+        Arrays.sort(cells, (x, y) -> Integer.compare(agencyCounts[y], agencyCounts[x]));
+        for (int cell : cells) result.put(agencies[agencyTargets[cell]], agencyCounts[cell]);
+        return result;
+    }
+
+    /* --------------------------------------------------------------- */
+    /** Write the nodes and out-rows to {@code file} (through a temporary file). */
+    public void save(Path file) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path partial = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(partial), 1 << 16))) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(agencies.length);
+            for (String agency : agencies) writeString(out, agency);
+            out.writeInt(ids.length);
+            for (int node = 0; node < ids.length; node++) {
+                writeString(out, ids[node]);
+                out.writeByte(levels[node]);
+                out.writeInt(parents[node]);
+                out.writeInt(owners[node]);
+            }
+            for (int offset : outOffsets) out.writeInt(offset);
+            for (int target : outTargets) out.writeInt(target);
+        }
+        Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.out.printf("Saved citation graph (%,d nodes, %,d edges, %,d bytes) to %s\n",
+                          ids.length, outTargets.length, Files.size(file), file);
+    }
+
+    /** Write the agency roll-up as {@code "citing agency","cited agency","citations"} rows. */
+    public void saveAgencyCitations(Path csv) throws IOException {
+        Files.createDirectories(csv.toAbsolutePath().getParent());
+        try (PrintStream out = new PrintStream(csv.toFile(), StandardCharsets.UTF_8)) {
+            for (String agency : agencies) {
+                for (Map.Entry<String, Integer> e : getAgencyCitations(agency).entrySet()) {
+                    out.printf("\"%s\",\"%s\",\"%d\"\n", agency, e.getKey(), e.getValue());
+                }
+            }
+        }
+    }
+
+    /** Map a file written by {@link #save} and rebuild the graph. */
+    public static CitationGraph load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try {
+                byte[] magic = new byte[MAGIC.length];
+                buf.get(magic);
+                if (!Arrays.equals(magic, MAGIC)) throw new IOException("Not a citation graph: " + file);
+                int version = buf.getInt();
+                if (version != VERSION) throw new IOException("Unsupported citation graph version " + version);
+                String[] agencies = new String[buf.getInt()];
+                for (int i = 0; i < agencies.length; i++) agencies[i] = readString(buf);
+                int n = buf.getInt();
+                String[] ids = new String[n];
+                byte[] levels = new byte[n];
+                int[] parents = new int[n];
+                int[] owners = new int[n];
+                for (int node = 0; node < n; node++) {
+                    ids[node] = readString(buf);
+                    levels[node] = buf.get();
+                    parents[node] = buf.getInt();
+                    owners[node] = buf.getInt();
+                }
+                int[] outOffsets = readInts(buf, n + 1);
+                int[] outTargets = readInts(buf, outOffsets[n]);
+                return new CitationGraph(ids, levels, parents, owners, agencies, outOffsets, outTargets);
+            } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                throw new IOException("Truncated citation graph " + file, e);
+            }
+        }
+    }
+
+    /* --------------------------------------------------------------- */
+    /** Accumulates nodes and citations; not thread-safe. */
+    public static final class Builder {
+        private final Map<String, Integer> index = new HashMap<>();
+        private final List<String> ids = new ArrayList<>();
+        private final IntList levels = new IntList();
+        private final IntList parents = new IntList();
+        private final IntList owners = new IntList();
+        private final List<String> agencies = new ArrayList<>();
+        private final Map<String, Integer> agencyIndex = new HashMap<>();
+        private final IntList sources = new IntList();
+        private final IntList targets = new IntList();
+
+        public int agency(String slug) {
+            return agencyIndex.computeIfAbsent(slug, s -> {
+                agencies.add(s);
+                return agencies.size() - 1;
+            });
+        }
+
+        public int title(String title) {
+            return node(key(title, null, null), Level.TITLE, -1);
+        }
+
+        public int part(String title, String part) {
+            return node(key(title, part, null), Level.PART, title(title));
+        }
+
+        public int section(String title, String part, String section) {
+            return node(key(title, null, section), Level.SECTION, part(title, part));
+        }
+
+        /** Record that {@code node} is stored under {@code agency}; the first agency wins. */
+        public void own(int node, int agency) {
+            if (owners.get(node) < 0) owners.set(node, agency);
+        }
+
+        public void cite(int from, int to) {
+            if (from == to) return;
+            sources.add(from);
+            targets.add(to);
+        }
+
+        public CitationGraph build() {
+            int n = ids.size();
+            int[] owner = owners.toArray();
+            int[] parent = parents.toArray();
+            byte[] level = new byte[n];
+            for (int node = 0; node < n; node++) {
+                level[node] = (byte) levels.get(node);
+                // A section nobody stored belongs to whoever stores its part (parents come first).
+                if (owner[node] < 0 && level[node] == Level.SECTION.ordinal()) owner[node] = owner[parent[node]];
+            }
+
+            int[] offsets = new int[n + 1];
+            for (int e = 0; e < sources.size(); e++) offsets[sources.get(e) + 1]++;
+            for (int i = 0; i < n; i++) offsets[i + 1] += offsets[i];
+            int[] row = new int[sources.size()];
+            int[] fill = Arrays.copyOf(offsets, n);
+            for (int e = 0; e < sources.size(); e++) row[fill[sources.get(e)]++] = targets.get(e);
+
+            // Sort each row and drop repeated citations, compacting in place.
+            int write = 0;
+            int[] compacted = new int[n + 1];
+            for (int node = 0; node < n; node++) {
+                int start = offsets[node];
+                int end = offsets[node + 1];
+                Arrays.sort(row, start, end);
+                compacted[node] = write;
+                for (int e = start; e < end; e++) {
+                    if (e == start || row[e] != row[e - 1]) row[write++] = row[e];
+                }
+            }
+            compacted[n] = write;
+            return new CitationGraph(ids.toArray(new String[0]), level, parent, owner,
+                                     agencies.toArray(new String[0]), compacted, Arrays.copyOf(row, write));
+        }
+
+        private int node(String id, Level level, int parent) {
+            Integer existing = index.get(id);
+            if (existing != null) return existing;
+            int node = ids.size();
+            index.put(id, node);
+            ids.add(id);
+            levels.add(level.ordinal());
+            parents.add(parent);
+            owners.add(-1);
+            return node;
+        }
+    }
+
+    /** Growable {@code int[]}, so edges are not boxed while the graph is assembled. */
+    private static final class IntList {
+        private int[] values = new int[1024];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        int get(int i) { return values[i]; }
+        void set(int i, int value) { values[i] = value; }
+        int size() { return size; }
+        int[] toArray() { return Arrays.copyOf(values, size); }
+    }
+
+    /* --------------------------------------------------------------- */
+    private static int[][] transpose(int n, int[] offsets, int[] targets) {
+        int[] counts = new int[n + 1];
+        for (int target : targets) counts[target + 1]++;
+        for (int i = 0; i < n; i++) counts[i + 1] += counts[i];
+        int[] sources = new int[targets.length];
+        int[] fill = Arrays.copyOf(counts, n);
+        for (int node = 0; node < n; node++) {
+            for (int e = offsets[node]; e < offsets[node + 1]; e++) sources[fill[targets[e]]++] = node;
+        }
+        return new int[][] { counts, sources };
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int[] readInts(ByteBuffer buf, int count) {
+        int[] values = new int[count];
+        buf.asIntBuffer().get(values);
+        buf.position(buf.position() + count * Integer.BYTES);
+        return values;
+    }
+}
@@ -0,0 +1,254 @@
+package org.jaa.takehome.analytics;
+
+import org.jaa.takehome.xml.HierarchyExtractor;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Near-duplicate sections across agencies, found with MinHash signatures and
+ * locality-sensitive hashing instead of comparing every pair of sections.
+ *
+ * <p>Each stored chapter is memory-mapped, its {@code SECTION} byte ranges are located with
+ * {@link HierarchyExtractor#scan}, and each section is tokenized in place with the
+ * {@link Utf8Tokenizer}.  Overlapping three-word shingles are hashed from the token hashes and
+ * folded into a one-permutation MinHash of {@value #SIGNATURE_SIZE} ints (one hash per
+ * shingle; empty bins are filled from their neighbours), so a section costs a fixed
+ * {@value #SIGNATURE_SIZE} ints however long it is, and nothing of its text is kept.
+ *
+ * <p>{@link #detect()} splits the signatures into {@value #BANDS} bands.  Sections whose band
+ * hashes collide are candidates, and a candidate whose signature agrees with the bucket's
+ * first or previous member on at least {@code threshold} of the positions is merged into the
+ * same cluster.  That is linear in the number of sections apart from the sort of the result.
+ * The same regulation stored for two agencies (a shared chapter) is not reported as a copy of
+ * itself, and sections shorter than {@value #MIN_WORDS} words are skipped.
+ */
+public class NearDuplicateDetector {
+
+    public static final int SIGNATURE_SIZE = 64;
+    /** 8 bands of 8 rows: pairs above ~0.77 estimated Jaccard similarity become candidates. */
+    private static final int BANDS = 8;
+    private static final int ROWS = SIGNATURE_SIZE / BANDS;
+    private static final int SHINGLE_WORDS = 3;
+    private static final int MIN_WORDS = 25;
+    private static final long PRIME = 0x100000001b3L;
+
+    /** One section taking part in a cluster. */
+    public static class Member {
+        private final String agency;
+        private final String titleNumber;
+        private final String chapterName;
+        private final String section;
+
+        Member(String agency, String titleNumber, String chapterName, String section) {
+            this.agency = agency;
+            this.titleNumber = titleNumber;
+            this.chapterName = chapterName;
+            this.section = section;
+        }
+
+        public String getAgency() { return agency; }
+        public String getTitleNumber() { return titleNumber; }
+        public String getChapterName() { return chapterName; }
+        public String getSection() { return section; }
+
+        @Override
+        public String toString() {
+            return titleNumber + " CFR " + section + " (" + agency + ")";
+        }
+    }
+
+    /** Sections that are near copies of one another, stored under at least two agencies. */
+    public static class Cluster {
+        private final List<Member> members = new ArrayList<>();
+        private final Set<String> agencies = new TreeSet<>();
+
+        public List<Member> getMembers() { return members; }
+        public Set<String> getAgencies() { return agencies; }
+    }
+
+    private final double threshold;
+    private final Utf8Tokenizer tokenizer = new Utf8Tokenizer();
+    private final HierarchyExtractor hierarchy = new HierarchyExtractor();
+    private final List<Member> sections = new ArrayList<>();
+    private int[] signatures = new int[SIGNATURE_SIZE * 1024];
+    private final int[] scratch = new int[SIGNATURE_SIZE];
+    private int skipped;
+
+    /** @param threshold minimum fraction of agreeing signature positions, e.g. {@code 0.8} */
+    public NearDuplicateDetector(double threshold) {
+        this.threshold = threshold;
+    }
+
+    public int getSectionCount() { return sections.size(); }
+    /** Sections left out because they were too short to sketch. */
+    public int getSkipped() { return skipped; }
+
+    /* --------------------------------------------------------------- */
+    /** Sketch every section of one stored chapter file. */
+    public void add(Path chapterXml, String agency, String titleNumber, String chapterName) throws IOException {
+        try (FileChannel channel = FileChannel.open(chapterXml, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Chapter XML larger than 2 GB cannot be mapped in one piece: " + chapterXml);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            for (HierarchyExtractor.Node node : hierarchy.scan(buffer.duplicate())) {
+                if (!"SECTION".equalsIgnoreCase(node.getType()) || node.getIdentifier() == null) continue;
+                ByteBuffer section = buffer.duplicate();
+                section.limit((int) node.getEnd()).position((int) node.getStart());
+                if (!sketch(section, scratch)) {
+                    skipped++;
+                    continue;
+                }
+                int offset = sections.size() * SIGNATURE_SIZE;
+                if (offset + SIGNATURE_SIZE > signatures.length) signatures = Arrays.copyOf(signatures, signatures.length * 2);
+                System.arraycopy(scratch, 0, signatures, offset, SIGNATURE_SIZE);
+                sections.add(new Member(agency, titleNumber, chapterName, node.getIdentifier().replace("§", "").trim()));
+            }
+        }
+    }
+
+    /** Cluster the sketched sections; clusters spanning two or more agencies, largest first. */
+    public List<Cluster> detect() {
+        int n = sections.size();
+        int[] parent = new int[n];
+        for (int i = 0; i < n; i++) parent[i] = i;
+        for (int band = 0; band < BANDS; band++) {
+            Map<Long, int[]> buckets = new HashMap<>(n * 2);
+            for (int i = 0; i < n; i++) {
+                long key = bandKey(i, band);
+                int[] bucket = buckets.get(key);
+                if (bucket == null) {
+                    buckets.put(key, new int[] { i, i });
+                    continue;
+                }
+                if (isCopy(bucket[0], i)) union(parent, bucket[0], i);
+                else if (bucket[1] != bucket[0] && isCopy(bucket[1], i)) union(parent, bucket[1], i);
+                bucket[1] = i;
+            }
+        }
+
+        int[] sizes = new int[n];
+        for (int i = 0; i < n; i++) sizes[find(parent, i)]++;
+        Map<Integer, Cluster> byRoot = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            int root = find(parent, i);
+            if (sizes[root] < 2) continue;
+            Cluster cluster = byRoot.computeIfAbsent(root, r -> new Cluster());
+            cluster.members.add(sections.get(i));
+            cluster.agencies.add(sections.get(i).agency);
+        }
+        List<Cluster> clusters = new ArrayList<>();
+        for (Cluster cluster : byRoot.values()) {
+            if (cluster.agencies.size() > 1) clusters.add(cluster);
+        }
+        clusters.sort((a, b) -> b.members.size() != a.members.size()
+                ? Integer.compare(b.members.size(), a.members.size())
+                : Integer.compare(b.agencies.size(), a.agencies.size()));
+        return clusters;
+    }
+
+    /** Write {@code "cluster","agency","title","chapter","section"} rows. */
+    public static void write(List<Cluster> clusters, Path csv) throws IOException {
+        Files.createDirectories(csv.toAbsolutePath().getParent());
+        try (PrintStream out = new PrintStream(csv.toFile(), StandardCharsets.UTF_8)) {
+            for (int c = 0; c < clusters.size(); c++) {
+                for (Member member : clusters.get(c).members) {
+                    out.printf("\"%d\",\"%s\",\"%s\",\"%s\",\"%s\"\n", c + 1, member.agency, member.titleNumber,
+                               member.chapterName, member.section.replace("\"", "\"\""));
+                }
+            }
+        }
+    }
+
+    /* --------------------------------------------------------------- */
+    /**
+     * One-permutation MinHash of the section's word shingles into {@code sig}.
+     *
+     * @return {@code false} when the section is too short to be worth comparing
+     */
+    private boolean sketch(ByteBuffer section, int[] sig) {
+        Arrays.fill(sig, Integer.MAX_VALUE);
+        long previous = 0;
+        long beforePrevious = 0;
+        int words = 0;
+        while (tokenizer.next(section)) {
+            long word = tokenizer.hash();
+            if (++words >= SHINGLE_WORDS) {
+                long shingle = mix((beforePrevious * PRIME + previous) * PRIME + word);
+                int bin = (int) (shingle >>> 58);
+                int value = (int) (shingle & Integer.MAX_VALUE);
+                if (value < sig[bin]) sig[bin] = value;
+            }
+            beforePrevious = previous;
+            previous = word;
+        }
+        if (words < MIN_WORDS) return false;
+        // Densify: an empty bin borrows from the next filled one, salted by the distance.
+        for (int bin = 0; bin < SIGNATURE_SIZE; bin++) {
+            if (sig[bin] != Integer.MAX_VALUE) continue;
+            for (int step = 1; step < SIGNATURE_SIZE; step++) {
+                int from = sig[(bin + step) % SIGNATURE_SIZE];
+                if (from != Integer.MAX_VALUE && from >= 0) {
+                    sig[bin] = -1 - (int) (mix(from * PRIME + step) & Integer.MAX_VALUE);
+                    break;
+                }
+            }
+        }
+        return true;
+    }
+
+    private long bandKey(int section, int band) {
+        long key = band;
+        int offset = section * SIGNATURE_SIZE + band * ROWS;
+        for (int r = 0; r < ROWS; r++) key = key * PRIME + signatures[offset + r];
+        return mix(key);
+    }
+
+    /** Estimated similarity at or above the threshold, and not the same regulation twice. */
+    private boolean isCopy(int a, int b) {
+        Member x = sections.get(a);
+        Member y = sections.get(b);
+        if (x.titleNumber.equals(y.titleNumber) && x.section.equals(y.section)) return false;
+        int agree = 0;
+        int offsetA = a * SIGNATURE_SIZE;
+        int offsetB = b * SIGNATURE_SIZE;
+        for (int k = 0; k < SIGNATURE_SIZE; k++) {
+            if (signatures[offsetA + k] == signatures[offsetB + k]) agree++;
+        }
+        return agree >= threshold * SIGNATURE_SIZE;
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parent, int a, int b) {
+        int ra = find(parent, a);
+        int rb = find(parent, b);
+        if (ra != rb) parent[Math.max(ra, rb)] = Math.min(ra, rb);
+    }
+
+    /** 64-bit finalizer (MurmurHash3 fmix64), so nearby inputs land in unrelated bins. */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe53a5ec3L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,184 @@
+package org.jaa.takehome.analytics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Word tokenizer working directly on UTF-8 bytes, typically a memory-mapped XML file or a
+ * buffer handed out by the {@code ContentCache}.
+ *
+ * <p>Markup ({@code <...>}) and entity references ({@code &amp;...;}) are skipped.  A token is a run of
+ * ASCII letters and digits and non-ASCII letters; an apostrophe between letters stays in the
+ * token ("agency's").  Common UTF-8 punctuation ({@code §}, {@code ¶}, non-breaking space,
+ * dashes and curly quotes) separates tokens like ASCII punctuation does.
+ *
+ * <p>Nothing is allocated per token: {@link #next(ByteBuffer)} leaves the current token's span
+ * and its 64-bit case-folded FNV-1a hash in fields of this (reusable, single-threaded)
+ * instance, and the bulk methods write spans or hashes into caller-supplied primitive arrays.
+ * The buffer's position is advanced past each token, so a full array can be drained and the
+ * call repeated to continue where it stopped.
+ */
+public final class Utf8Tokenizer {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    /** Window used when mapping files larger than a single {@link MappedByteBuffer} can address. */
+    private static final long MAP_WINDOW = 1L << 30;
+
+    private int tokenStart;
+    private int tokenEnd;
+    private long tokenHash;
+
+    /* --------------------------------------------------------------- */
+    /**
+     * Advance to the next token between the buffer's position and limit.
+     *
+     * @return {@code false} when no token is left; otherwise the token is described by
+     *         {@link #start()}, {@link #end()} and {@link #hash()}
+     */
+    public boolean next(ByteBuffer buf) {
+        int i = buf.position();
+        int limit = buf.limit();
+        while (i < limit) {
+            int b = buf.get(i) & 0xFF;
+            if (b == '<') {
+                i = skipPast(buf, i + 1, limit, '>');
+            } else if (b == '&') {
+                i = skipPast(buf, i + 1, limit, ';');
+            } else if (wordByteLength(buf, i, limit) > 0) {
+                int start = i;
+                long h = FNV_OFFSET;
+                int n;
+                while (i < limit && (n = wordByteLength(buf, i, limit)) > 0) {
+                    for (int k = 0; k < n; k++) {
+                        int c = buf.get(i + k) & 0xFF;
+                        if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+                        h = (h ^ c) * FNV_PRIME;
+                    }
+                    i += n;
+                    if (i + 1 < limit && buf.get(i) == '\'' && isAsciiLetter(buf.get(i + 1) & 0xFF)) {
+                        h = (h ^ '\'') * FNV_PRIME;
+                        i++;
+                    }
+                }
+                tokenStart = start;
+                tokenEnd = i;
+                tokenHash = h;
+                buf.position(i);
+                return true;
+            } else {
+                i++;
+            }
+        }
+        buf.position(limit);
+        return false;
+    }
+
+    /** Absolute index of the first byte of the current token. */
+    public int start() { return tokenStart; }
+    /** Absolute index just past the last byte of the current token. */
+    public int end() { return tokenEnd; }
+    /** Case-folded 64-bit FNV-1a hash of the current token. */
+    public long hash() { return tokenHash; }
+
+    /**
+     * Write up to {@code starts.length} token spans into {@code starts} / {@code ends}.
+     *
+     * @return number of spans written; less than the array length only when the buffer is exhausted
+     */
+    public int spans(ByteBuffer buf, int[] starts, int[] ends) {
+        int max = Math.min(starts.length, ends.length);
+        int count = 0;
+        while (count < max && next(buf)) {
+            starts[count] = tokenStart;
+            ends[count] = tokenEnd;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Write up to {@code hashes.length} token hashes into {@code hashes}.
+     *
+     * @return number of hashes written; less than the array length only when the buffer is exhausted
+     */
+    public int hashes(ByteBuffer buf, long[] hashes) {
+        int count = 0;
+        while (count < hashes.length && next(buf)) {
+            hashes[count++] = tokenHash;
+        }
+        return count;
+    }
+
+    /** Number of tokens between the buffer's position and limit (consumes the buffer). */
+    public long count(ByteBuffer buf) {
+        long count = 0;
+        while (next(buf)) count++;
+        return count;
+    }
+
+    /* --------------------------------------------------------------- */
+    /** Word count of a whole XML file, read through memory mapping. */
+    public static long countWords(Path file) throws IOException {
+        Utf8Tokenizer tokenizer = new Utf8Tokenizer();
+        long words = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                long length = Math.min(MAP_WINDOW, size - position);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                if (position + length < size) {
+                    // End the window just after a '>' so no token or tag straddles two windows.
+                    int cut = (int) length - 1;
+                    while (cut > 0 && window.get(cut) != '>') cut--;
+                    if (cut > 0) length = cut + 1;
+                    window.limit((int) length);
+                }
+                words += tokenizer.count(window);
+                position += length;
+            }
+        }
+        return words;
+    }
+
+    /* --------------------------------------------------------------- */
+    private static int skipPast(ByteBuffer buf, int i, int limit, char terminator) {
+        while (i < limit && buf.get(i) != terminator) i++;
+        return Math.min(i + 1, limit);
+    }
+
+    private static boolean isAsciiLetter(int b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+    }
+
+    /**
+     * Length in bytes of the word character starting at {@code i}, or 0 when it is not a word
+     * character.  Multi-byte sequences count as letters unless they are one of the punctuation
+     * code points listed in the class comment.
+     */
+    private static int wordByteLength(ByteBuffer buf, int i, int limit) {
+        int b = buf.get(i) & 0xFF;
+        if (b < 0x80) {
+            return ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')) ? 1 : 0;
+        }
+        if (b >= 0xC2 && b <= 0xDF) {
+            if (i + 1 >= limit) return 0;
+            // U+00A0..U+00BF: nbsp, §, ¶, «, », ° ... are punctuation, not letters.
+            return (b == 0xC2 && (buf.get(i + 1) & 0xFF) >= 0xA0) ? 0 : 2;
+        }
+        if (b >= 0xE0 && b <= 0xEF) {
+            if (i + 2 >= limit) return 0;
+            // U+2000..U+206F: general punctuation (dashes, quotes, spaces).
+            return (b == 0xE2 && (buf.get(i + 1) & 0xFF) >= 0x80 && (buf.get(i + 1) & 0xFF) <= 0x81) ? 0 : 3;
+        }
+        if (b >= 0xF0 && b <= 0xF4) {
+            return i + 3 < limit ? 4 : 0;
+        }
+        return 0;   // stray continuation byte
+    }
+}
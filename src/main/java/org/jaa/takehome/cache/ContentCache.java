@@ -0,0 +1,240 @@
+package org.jaa.takehome.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static org.jaa.takehome.Constants.CONTENT_CACHE_BYTES;
+import static org.jaa.takehome.Constants.CONTENT_CACHE_OFF_HEAP;
+
+/**
+ * Shared, byte-budgeted LRU cache of stored chapter content.
+ *
+ * <p>Entries are the raw bytes of a chapter file, keyed by the file's canonical path (symbolic
+ * links resolved) and byte range, and held either in heap buffers or in direct (off-heap)
+ * buffers.  Keying on the file rather than on title and chapter keeps two agencies that store
+ * the same chapter from evicting each other on every alternate read.  The total size of all entries never exceeds
+ * the budget; least recently used entries are evicted to make room, and a file larger than a
+ * quarter of the budget is served without being cached.  For on-heap buffers the budget is
+ * additionally capped at a quarter of the maximum heap, so the cache can not be the reason
+ * for an {@code OutOfMemoryError}.
+ *
+ * <p>An entry is either a whole file or one byte range of it (a section of a title XML).  Each
+ * entry remembers the size and modification time of the file it was read from, and every
+ * {@link #get} compares them with the file on disk, so a file rewritten by another process (a
+ * sync running next to {@code --serve}) is reloaded on its next read.  Code in the same process
+ * that rewrites a file can also call {@link #invalidate(Path)} to drop its bytes at once.
+ *
+ * <p>Returned buffers are read-only views, safe to hand to several threads at once.  The
+ * analytics passes read every chapter once, in sequence, and map the files instead: run through
+ * an LRU cache, such a scan would only push out what the service reads repeatedly.
+ */
+public class ContentCache {
+
+    private static final ContentCache SHARED = new ContentCache(CONTENT_CACHE_BYTES, CONTENT_CACHE_OFF_HEAP);
+
+    /** Snapshot of the cache counters. */
+    public static class Stats {
+        public final long hits;
+        public final long misses;
+        public final long evictions;
+        public final long bytes;
+        public final long budget;
+        public final int entries;
+
+        Stats(long hits, long misses, long evictions, long bytes, long budget, int entries) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.bytes = bytes;
+            this.budget = budget;
+            this.entries = entries;
+        }
+
+        public double hitRatio() {
+            long total = hits + misses;
+            return total == 0 ? 0.0 : (double) hits / total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits=%,d misses=%,d (%.1f%% hit) evictions=%,d entries=%,d bytes=%,d/%,d",
+                                 hits, misses, hitRatio() * 100.0, evictions, entries, bytes, budget);
+        }
+    }
+
+    /** A byte range of a file; {@code length} {@code -1} is the whole file. */
+    private static final class Slice {
+        final Path file;
+        final long offset;
+        final long length;
+
+        Slice(Path file, long offset, long length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Slice)) return false;
+            Slice other = (Slice) o;
+            return file.equals(other.file) && offset == other.offset && length == other.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(file, offset, length);
+        }
+    }
+
+    private static class Entry {
+        final ByteBuffer content;
+        final long fileSize;
+        final long fileModified;
+
+        Entry(ByteBuffer content, long fileSize, long fileModified) {
+            this.content = content;
+            this.fileSize = fileSize;
+            this.fileModified = fileModified;
+        }
+
+        boolean isCurrent(long size, long modified) {
+            return fileSize == size && fileModified == modified;
+        }
+    }
+
+    private final long budget;
+    private final boolean offHeap;
+    private final LinkedHashMap<Slice, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final Map<Path, Set<Slice>> keysByFile = new HashMap<>();
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public ContentCache(long budget, boolean offHeap) {
+        this.offHeap = offHeap;
+        this.budget = offHeap ? budget : Math.min(budget, Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    /** The process-wide cache, sized by {@code Constants.CONTENT_CACHE_BYTES}. */
+    public static ContentCache shared() {
+        return SHARED;
+    }
+
+    /* --------------------------------------------------------------- */
+    /**
+     * Content of {@code file}, from memory when cached and still current, otherwise read from
+     * disk (and cached if it fits the budget).
+     */
+    public ByteBuffer get(Path file) throws IOException {
+        return get(file, 0, -1);
+    }
+
+    /**
+     * {@code length} bytes of {@code file} from {@code offset} ({@code -1}: to the end of the
+     * file), from memory when cached and the file is unchanged since.
+     */
+    public ByteBuffer get(Path file, long offset, long length) throws IOException {
+        Path normalized = file.toRealPath();
+        long size = Files.size(normalized);
+        long modified = Files.getLastModifiedTime(normalized).toMillis();
+        Slice key = new Slice(normalized, offset, length);
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.isCurrent(size, modified)) {
+                hits++;
+                return entry.content.asReadOnlyBuffer();
+            }
+            misses++;
+            if (entry != null) remove(key);
+        }
+
+        long available = Math.max(0, size - offset);
+        ByteBuffer content = read(normalized, offset, length < 0 ? available : Math.min(length, available));
+        if (isCacheable(content.capacity())) {
+            synchronized (this) {
+                if (!entries.containsKey(key)) {
+                    makeRoom(content.capacity());
+                    entries.put(key, new Entry(content, size, modified));
+                    keysByFile.computeIfAbsent(normalized, f -> new HashSet<>()).add(key);
+                    bytes += content.capacity();
+                }
+            }
+        }
+        return content.asReadOnlyBuffer();
+    }
+
+    /** Whether content of this many bytes is kept; larger content is better streamed from disk. */
+    public boolean isCacheable(long size) {
+        return size <= budget / 4;
+    }
+
+    /** Drop whatever is cached from {@code file}; called by the sync step after rewriting it. */
+    public synchronized void invalidate(Path file) {
+        Path normalized;
+        try {
+            normalized = file.toRealPath();
+        } catch (IOException e) {
+            normalized = file.toAbsolutePath().normalize();   // gone: nothing can be cached under it
+        }
+        Set<Slice> keys = keysByFile.get(normalized);
+        if (keys != null) {
+            for (Slice key : new ArrayList<>(keys)) remove(key);
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        entries.clear();
+        keysByFile.clear();
+        bytes = 0;
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(hits, misses, evictions, bytes, budget, entries.size());
+    }
+
+    /* --------------------------------------------------------------- */
+    private void makeRoom(long needed) {
+        Iterator<Map.Entry<Slice, Entry>> it = entries.entrySet().iterator();
+        while (bytes + needed > budget && it.hasNext()) {
+            Map.Entry<Slice, Entry> eldest = it.next();
+            it.remove();
+            forget(eldest.getKey());
+            bytes -= eldest.getValue().content.capacity();
+            evictions++;
+        }
+    }
+
+    private void remove(Slice key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            forget(key);
+            bytes -= entry.content.capacity();
+        }
+    }
+
+    private void forget(Slice key) {
+        Set<Slice> keys = keysByFile.get(key.file);
+        if (keys != null && keys.remove(key) && keys.isEmpty()) keysByFile.remove(key.file);
+    }
+
+    private ByteBuffer read(Path file, long offset, long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("File too large to cache: " + file + " (" + size + " bytes)");
+        }
+        ByteBuffer buffer = offHeap ? ByteBuffer.allocateDirect((int) size) : ByteBuffer.allocate((int) size);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) >= 0) {
+                // keep reading until the buffer is full
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
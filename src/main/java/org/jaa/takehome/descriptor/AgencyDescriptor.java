@@ -40,6 +40,7 @@ public  class AgencyDescriptor {
     public int getTitleCount() { return agencyTitles.size(); }
     public int getChapterCount() { return agencyChapters.size(); }
     public List<ChapterDescriptor> getChapters() { return agencyChapters; }
+    public List<TitleDescriptor> getTitles() { return agencyTitles; }
 
     public String getDisplayName() {return displayName;}
     public void setDisplayName(String displayName) {this.displayName = displayName;}
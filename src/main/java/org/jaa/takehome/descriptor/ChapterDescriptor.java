@@ -4,6 +4,8 @@ public class ChapterDescriptor {
     private String chapterName;
     private TitleDescriptor titleDescriptor;
     private AgencyDescriptor agencyDescriptor;
+    /** Size hint from the {@code /ancestry} response, {@code -1} when unknown. */
+    private long size = -1;
     public ChapterDescriptor(String chapterName, TitleDescriptor titleDescriptor, AgencyDescriptor agencyDescriptor) {
         this.chapterName = chapterName;
         this.titleDescriptor = titleDescriptor;
@@ -14,6 +16,8 @@ public class ChapterDescriptor {
     public String getChapterName() { return chapterName; }
     public TitleDescriptor getTitleDescriptor() { return this.titleDescriptor; }
     public AgencyDescriptor getAgencyDescriptor() { return this.agencyDescriptor; }
+    public long getSize() { return size; }
+    public void setSize(long size) { this.size = size; }
 
 
 
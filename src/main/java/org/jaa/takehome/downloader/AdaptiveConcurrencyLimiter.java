@@ -0,0 +1,234 @@
+package org.jaa.takehome.downloader;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Instant;
+import java.util.OptionalLong;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.jaa.takehome.Constants.INITIAL_CONCURRENCY;
+import static org.jaa.takehome.Constants.MAX_CONCURRENCY;
+
+/**
+ * AIMD limiter on the number of eCFR requests in flight, shared by every downloader.
+ *
+ * <p>Every response adjusts the limit:
+ * <ul>
+ *   <li>a success with headroom adds {@code 1/limit} (roughly +1 per round of requests);</li>
+ *   <li>{@code 429} halves the limit and pauses all new requests for {@code Retry-After}; the
+ *       throttled request itself is sent again once the pause is over (up to
+ *       {@value #THROTTLE_ATTEMPTS} attempts), so callers only see a 429 the server keeps repeating;</li>
+ *   <li>{@code X-Rate-Limit-Remaining} running low relative to the limit cuts it by a quarter,
+ *       and at {@value #SAFETY_REMAINING} or fewer new requests wait for {@code X-Rate-Limit-Reset};</li>
+ *   <li>time-to-first-byte rising above twice the observed baseline cuts it by 10%.</li>
+ * </ul>
+ * Decreases are spaced at least {@value #DECREASE_COOLDOWN_MS} ms apart so one burst of
+ * slow or throttled responses counts once.  Latency is taken when the response headers
+ * arrive, so a large body does not look like a slow server.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    private static final AdaptiveConcurrencyLimiter SHARED = new AdaptiveConcurrencyLimiter(INITIAL_CONCURRENCY, MAX_CONCURRENCY);
+
+    /** Minimum number of remaining requests before we pause (safety margin). */
+    private static final int SAFETY_REMAINING = 5;
+    /** Minimum sleep (ms) when we have to wait for the rate‑limit reset. */
+    private static final long MIN_SLEEP_MS = 1_000L;
+    /** Default pause on a 429 without {@code Retry-After}. */
+    private static final long DEFAULT_RETRY_AFTER_MS = 5_000L;
+    /** Sends of one request while the server keeps answering {@code 429}. */
+    private static final int THROTTLE_ATTEMPTS = 5;
+    private static final long DECREASE_COOLDOWN_MS = 1_000L;
+    private static final double MIN_LIMIT = 1.0;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final double maxLimit;
+    private double limit;
+    private int inFlight;
+    private long pausedUntilMs;
+    private long lastDecreaseMs;
+    private double baselineLatencyMs = Double.NaN;
+    private double smoothedLatencyMs = Double.NaN;
+    private long responses;
+    private long throttled;
+
+    public AdaptiveConcurrencyLimiter(int initialLimit, int maxLimit) {
+        this.maxLimit = Math.max(MIN_LIMIT, maxLimit);
+        this.limit = Math.max(MIN_LIMIT, Math.min(initialLimit, this.maxLimit));
+    }
+
+    public static AdaptiveConcurrencyLimiter shared() {
+        return SHARED;
+    }
+
+    /** Reads a streamed response body while the request still holds its slot. */
+    public interface BodyConsumer<T, R> {
+        R accept(HttpResponse<T> response) throws IOException, InterruptedException;
+    }
+
+    /* --------------------------------------------------------------- */
+    /** {@link HttpClient#send} gated by, and feeding back into, this limiter. */
+    public <T> HttpResponse<T> send(HttpClient client, HttpRequest request, HttpResponse.BodyHandler<T> handler)
+            throws IOException, InterruptedException {
+        return sendAndConsume(client, request, handler, response -> response);
+    }
+
+    /**
+     * Like {@link #send}, but the slot is only given back once {@code consumer} is done, so a
+     * streamed ({@code ofInputStream}) body still counts as in flight while it is being read.
+     */
+    public <T, R> R sendAndConsume(HttpClient client, HttpRequest request, HttpResponse.BodyHandler<T> handler,
+                                   BodyConsumer<T, R> consumer) throws IOException, InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            acquire();
+            long started = System.nanoTime();
+            long[] headersAt = {0L};
+            HttpResponse<T> response = null;
+            try {
+                response = client.send(request, info -> {
+                    headersAt[0] = System.nanoTime();
+                    return handler.apply(info);
+                });
+                if (response.statusCode() == 429 && attempt < THROTTLE_ATTEMPTS) {
+                    // release() below starts the pause; the next acquire() waits it out.
+                    if (response.body() instanceof AutoCloseable) closeQuietly((AutoCloseable) response.body());
+                    continue;
+                }
+                return consumer.accept(response);
+            } finally {
+                long firstByte = headersAt[0] != 0L ? headersAt[0] : System.nanoTime();
+                release(response, (firstByte - started) / 1_000_000.0);
+            }
+        }
+    }
+
+    /** Wait for a free slot (and for any rate-limit pause to end). */
+    public void acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                long pause = pausedUntilMs - System.currentTimeMillis();
+                if (pause > 0) {
+                    changed.await(pause, TimeUnit.MILLISECONDS);
+                } else if (inFlight < (int) limit) {
+                    inFlight++;
+                    return;
+                } else {
+                    changed.await();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Return a slot and adjust the limit from the response ({@code null} when the request failed). */
+    public void release(HttpResponse<?> response, double latencyMs) {
+        lock.lock();
+        try {
+            inFlight--;
+            int before = (int) limit;
+            if (response == null) {
+                decrease(0.75);
+            } else {
+                responses++;
+                adjust(response.statusCode(), response.headers(), latencyMs);
+            }
+            if ((int) limit != before) {
+                System.out.printf("\n⚙ Request concurrency %d → %d (in flight %d, %,d responses, %,d throttled)\n",
+                                  before, (int) limit, inFlight, responses, throttled);
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try { return (int) limit; } finally { lock.unlock(); }
+    }
+
+    /* --------------------------------------------------------------- */
+    private void adjust(int status, HttpHeaders headers, double latencyMs) {
+        long now = System.currentTimeMillis();
+        if (status == 429) {
+            throttled++;
+            OptionalLong retryAfter = headerLong(headers, "Retry-After");
+            long waitMs = retryAfter.isPresent() ? retryAfter.getAsLong() * 1000L : DEFAULT_RETRY_AFTER_MS;
+            pausedUntilMs = Math.max(pausedUntilMs, now + waitMs);
+            decrease(0.5);
+            return;
+        }
+
+        OptionalLong remaining = headerLong(headers, "X-Rate-Limit-Remaining");
+        if (remaining.isPresent()) {
+            if (remaining.getAsLong() <= SAFETY_REMAINING) {
+                long waitMs = MIN_SLEEP_MS;
+                OptionalLong reset = headerLong(headers, "X-Rate-Limit-Reset");
+                if (reset.isPresent()) {
+                    // The reset header is a Unix epoch seconds timestamp.
+                    long secsUntilReset = Math.max(0, reset.getAsLong() - Instant.now().getEpochSecond());
+                    waitMs = Math.max(waitMs, secsUntilReset * 1000L);
+                }
+                pausedUntilMs = Math.max(pausedUntilMs, now + waitMs);
+                System.out.printf("\n⏳ Rate limit low (remaining=%d). Pausing new requests for %d ms…%n",
+                                  remaining.getAsLong(), waitMs);
+                decrease(0.5);
+                return;
+            }
+            if (remaining.getAsLong() < 4L * limit) {
+                decrease(0.75);
+                return;
+            }
+        }
+
+        if (status >= 500) {
+            decrease(0.75);
+            return;
+        }
+
+        if (Double.isNaN(smoothedLatencyMs)) {
+            smoothedLatencyMs = latencyMs;
+            baselineLatencyMs = latencyMs;
+        } else {
+            smoothedLatencyMs = 0.8 * smoothedLatencyMs + 0.2 * latencyMs;
+            // The baseline follows new minimums at once and drifts up slowly so it can recover.
+            baselineLatencyMs = Math.min(latencyMs, baselineLatencyMs * 1.01);
+        }
+        if (smoothedLatencyMs > 2.0 * baselineLatencyMs && baselineLatencyMs > 0) {
+            decrease(0.9);
+            return;
+        }
+        limit = Math.min(maxLimit, limit + 1.0 / limit);
+    }
+
+    private void decrease(double factor) {
+        long now = System.currentTimeMillis();
+        if (now - lastDecreaseMs < DECREASE_COOLDOWN_MS) return;
+        lastDecreaseMs = now;
+        limit = Math.max(MIN_LIMIT, limit * factor);
+    }
+
+    private static void closeQuietly(AutoCloseable body) {
+        try {
+            body.close();
+        } catch (Exception e) {
+            // a throttled body is thrown away anyway
+        }
+    }
+
+    private static OptionalLong headerLong(HttpHeaders headers, String name) {
+        try {
+            return headers.firstValue(name).map(v -> OptionalLong.of(Long.parseLong(v.trim()))).orElse(OptionalLong.empty());
+        } catch (NumberFormatException e) {
+            return OptionalLong.empty();
+        }
+    }
+}
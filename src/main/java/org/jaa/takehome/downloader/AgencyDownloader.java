@@ -4,11 +4,14 @@ package org.jaa.takehome.downloader;
 
 
 import com.fasterxml.jackson.databind.*;
+import org.jaa.takehome.SyncOptions;
+import org.jaa.takehome.cache.ContentCache;
 import org.jaa.takehome.descriptor.AgencyDescriptor;
 import org.jaa.takehome.descriptor.ChapterDescriptor;
 import org.jaa.takehome.descriptor.PartDescriptor;
 import org.jaa.takehome.descriptor.TitleDescriptor;
 import org.jaa.takehome.utilities.Utils;
+import org.jaa.takehome.xml.TitleXmlSplitter;
 
 import java.io.File;
 import java.io.IOException;
@@ -19,7 +22,6 @@ import java.net.http.*;
 import java.nio.file.*;
 import java.time.Duration;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
 
 import static org.jaa.takehome.Constants.*;
 
@@ -34,8 +36,8 @@ import static org.jaa.takehome.Constants.*;
  *   <li>GET /titles/{title}/parts/{part} → full XML; write to disk.</li>
  * </ol>
  *
- * The client respects the public 5 req/s limit (500 ms pause) and retries once on a
- * 429 response, honoring the {@code Retry‑After} header.
+ * Requests go through the shared {@link AdaptiveConcurrencyLimiter}, which paces them and
+ * retries a 429 response after its {@code Retry-After} pause.
  */
 public class AgencyDownloader {
 
@@ -43,9 +45,16 @@ public class AgencyDownloader {
     private final HttpClient httpClient;
     private final ObjectMapper jsonMapper;
     private final List<TitleDescriptor> titleDescriptorList;
+    private final SyncOptions options;
 
     public AgencyDownloader(List<TitleDescriptor> titleDetails) {
+        this(titleDetails, SyncOptions.all());
+    }
+
+    /** Downloader restricted to the agencies, chapters and as-of date selected in {@code options}. */
+    public AgencyDownloader(List<TitleDescriptor> titleDetails, SyncOptions options) {
         this.titleDescriptorList = titleDetails;
+        this.options = options;
         this.httpClient = HttpClient.newBuilder()
                 .connectTimeout(Duration.ofSeconds(20))
                 .followRedirects(HttpClient.Redirect.NORMAL)
@@ -59,68 +68,91 @@ public class AgencyDownloader {
     /* --------------------------------------------------------------- */
 
     /**
-     * Main orchestration method.
+     * Write every agency chapter of {@code title} by splitting the already downloaded title XML
+     * locally, instead of downloading each chapter again with {@code ?chapter=}.
+     *
+     * @param targetsByTitle {@link #chapterTargets} of {@code allAgencies}, worked out once per run
+     * @return the chapters that could not be taken from the title XML (missing file or chapter);
+     *         callers can fall back to {@link #downloadChapters(List)} for those.
      */
-    public void getAllPartsForAllAgenciesAndSaveXml(List<AgencyDescriptor> allAgencies) throws IOException, InterruptedException {
-
-        // 1️⃣  Verify that the agency exists (optional but nice for early failure)
-        if (allAgencies.isEmpty()) {
-            throw new IllegalArgumentException("No Agencies found in the API");
+    public List<ChapterDescriptor> splitTitleXmlForAgencies(TitleDescriptor title, List<AgencyDescriptor> allAgencies,
+                                                            Map<String, Map<String, List<Path>>> targetsByTitle,
+                                                            TitleXmlSplitter splitter) throws IOException {
+        List<ChapterDescriptor> wanted = new ArrayList<>();
+        for (AgencyDescriptor agency : allAgencies) {
+            for (ChapterDescriptor chapter : agency.getChapters()) {
+                if (chapter.getTitleDescriptor() == title) wanted.add(chapter);
+            }
+        }
+        Path titleXml = TitleDownloader.titleXmlPath(title.getNumber());
+        if (wanted.isEmpty() || !Files.exists(titleXml)) {
+            return wanted;
         }
+        Map<String, List<Path>> targets = targetsByTitle.getOrDefault(title.getNumber(), Collections.emptyMap());
+        TitleXmlSplitter.Result result = splitter.split(titleXml, targets);
+        System.out.printf("Title (\033[34m%s\033[0m; \033[36m%s\033[0m) → split locally into \033[35m%d\033[0m agency chapter file(s)\n",
+                          title.getNumber(), title.getName(), result.getFilesWritten().size());
+        List<ChapterDescriptor> missing = new ArrayList<>();
+        for (ChapterDescriptor chapter : wanted) {
+            if (!result.getChaptersFound().contains(chapter.getChapterName().trim())) missing.add(chapter);
+        }
+        return missing;
+    }
 
-        for (AgencyDescriptor agency : allAgencies) {
-            // 3️⃣  For each Agency, download all parts that belong to the same agency
-            for (TitleDescriptor title : titleDescriptorList) {
-                downloadTitlePartsForAgency(title, agency);
+    /** title number → chapter number → chapter files of every agency referencing it. */
+    public static Map<String, Map<String, List<Path>>> chapterTargets(List<AgencyDescriptor> agencies) {
+        Map<String, Map<String, List<Path>>> targets = new HashMap<>();
+        for (AgencyDescriptor agency : agencies) {
+            for (ChapterDescriptor chapter : agency.getChapters()) {
+                String titleNumber = chapter.getTitleDescriptor().getNumber();
+                Path file = agencyTitleDirectory(agency, titleNumber).resolve(chapterFileName(chapter.getChapterName()));
+                targets.computeIfAbsent(titleNumber, k -> new HashMap<>())
+                        .computeIfAbsent(chapter.getChapterName().trim(), k -> new ArrayList<>())
+                        .add(file);
             }
         }
+        return targets;
+    }
+
+    /** Download the given chapters in parallel through the {@code ?chapter=} end-point, largest first. */
+    public void downloadChapters(List<ChapterDescriptor> chapters) throws IOException, InterruptedException {
+        if (!chapters.isEmpty()) {
+            System.out.printf("Downloading \033[35m%d\033[0m chapter(s) not available from the title XML\n", chapters.size());
+        }
+        DownloadPool.runLargestFirst(chapters, ChapterDescriptor::getSize, this::downloadChapter);
     }
 
     /* --------------------------------------------------------------- */
 
-    /**
-     * Download every part for a given title (already known to belong to the target agency).
-     */
-    private void downloadTitlePartsForAgency(TitleDescriptor titleDetails,
-                                             AgencyDescriptor agency)
-            throws IOException, InterruptedException {
-        Path agencyRoot = agency.getAgencyOutputPath();
-        String titleNum = titleDetails.getNumber();
-        Path titleDir = agencyRoot.resolve("Title-" + String.format("%02d", Integer.parseInt(titleNum)));
+    /** Download and save one chapter, retrying with a growing back-off. */
+    private void downloadChapter(ChapterDescriptor chapter) throws IOException, InterruptedException {
+        TitleDescriptor titleDetails = chapter.getTitleDescriptor();
+        AgencyDescriptor agency = chapter.getAgencyDescriptor();
+        Path titleDir = agencyTitleDirectory(agency, titleDetails.getNumber());
         Files.createDirectories(titleDir);
-
-        // 2️⃣  List parts for this title – we also pass the agency filter just in case a title mixes agencies.
-        int count = 1;
-
-        System.out.printf("Agency → \"\033[32m%s\033[0m\" → For (Title \033[34m%s\033[0m; \033[36m%s\033[0m) → Total of [\033[35m%,7d\33[0m] Expected Chapters(s)",
-                          agency.getName(), titleDetails.getNumber(), titleDetails.getName(), agency.getChapters().size());
-
-        for (ChapterDescriptor chapter : agency.getChapters()) {
-            System.out.flush();
-            count++;
-            Exception passException = null;
-            boolean ok = false;
-            for (int backoff = 1; backoff < 5 && !ok; backoff++) {
-                try {
-                    String xml = fetchPartXml(titleDetails, chapter);
-                    if (xml != null) {
-                        double kb = xml.length() / 1024.0;
-                        System.out.printf("\015\033[KDownload size \033[35m%.2f KB\033[0m for Agency → \"\033[32m%s\033[0m\" → For (Title \033[34m%s\033[0m; \033[36m%s\033[0m) → Chapter Number \033[32m%s\033[0m: ",
-                                          kb, agency.getName(), titleDetails.getNumber(), titleDetails.getName(), chapter.getChapterName());
-                        savePartXml(titleDir, chapter.getChapterName(), xml);
-                    }
-                    ok = true;
-                } catch (IOException ie) {
-                    passException = ie;
-                    long backoffDelay = REQUEST_DELAY_MS * backoff;
-                    System.out.printf("\nError downloading XML: \033[31m%s\033[0m. Backoff delay of %d Milliseconds\n",
-                                      ie.getMessage(),
-                                      backoffDelay);
-                    Thread.sleep(backoffDelay);
+        System.out.flush();
+        Exception passException = null;
+        boolean ok = false;
+        for (int backoff = 1; backoff < 5 && !ok; backoff++) {
+            try {
+                String xml = fetchPartXml(titleDetails, chapter);
+                if (xml != null) {
+                    double kb = xml.length() / 1024.0;
+                    System.out.printf("\015\033[KDownload size \033[35m%.2f KB\033[0m for Agency → \"\033[32m%s\033[0m\" → For (Title \033[34m%s\033[0m; \033[36m%s\033[0m) → Chapter Number \033[32m%s\033[0m: ",
+                                      kb, agency.getName(), titleDetails.getNumber(), titleDetails.getName(), chapter.getChapterName());
+                    savePartXml(titleDir, chapter.getChapterName(), xml);
                 }
+                ok = true;
+            } catch (IOException ie) {
+                passException = ie;
+                long backoffDelay = REQUEST_DELAY_MS * backoff;
+                System.out.printf("\nError downloading XML: \033[31m%s\033[0m. Backoff delay of %d Milliseconds\n",
+                                  ie.getMessage(),
+                                  backoffDelay);
+                Thread.sleep(backoffDelay);
             }
-            if (!ok && passException != null) throw new IOException(passException.getMessage());
         }
+        if (!ok && passException != null) throw new IOException(passException.getMessage());
     }
 
 
@@ -129,17 +161,33 @@ public class AgencyDownloader {
     public List<AgencyDescriptor> getAllAgencyDetailsFromEndpoint()
             throws IOException, InterruptedException {
         System.out.println("Getting all Agency Details");
-        ChapterLocator chapterLocator = new ChapterLocator();
-        List<AgencyDescriptor> allAgencies = new ArrayList<>();
         String url = API_BASE_URL + ENDPOINT_AGENCIES;
         HttpRequest request = buildRequest(url, "application/json");
-        HttpResponse<String> resp = httpClient.send(request,
-                                                    HttpResponse.BodyHandlers.ofString());
+        HttpResponse<String> resp = ResponseCache.shared().send(httpClient, request);
         Utils.ensureSuccess(request, resp, "Failed to fetch agencies – HTTP ");
 
+        List<AgencyDescriptor> allAgencies = parseAgencyDetails(resp.body(), new ChapterLocator(options.getDate()));
+        if (!options.isSelective()) {
+            // A targeted refresh only knows about part of the corpus; keep the full list from the last full run.
+            saveAgencyList(allAgencies);
+        }
+        return allAgencies;
+    }
+
+    /**
+     * Build the agency descriptors from an {@code agencies.json} payload.
+     * When {@code chapterLocator} is {@code null} (offline ingestion) the chapter
+     * references are accepted as-is instead of being validated against {@code /ancestry}.
+     * Agencies and chapters outside the {@link SyncOptions} selection are dropped before any
+     * look-up, and references to titles not in this downloader's title list are ignored.
+     */
+    public List<AgencyDescriptor> parseAgencyDetails(String json, ChapterLocator chapterLocator)
+            throws IOException, InterruptedException {
+        List<AgencyDescriptor> allAgencies = new ArrayList<>();
+        List<ChapterLookup> lookups = new ArrayList<>();
         // The API returns an array of strings:
         // ["Department of Labor", "Environmental Protection Agency", …]
-        JsonNode root = jsonMapper.readTree(resp.body());
+        JsonNode root = jsonMapper.readTree(json);
         JsonNode agencies = root.path("agencies");
         for (JsonNode node : agencies) {
             String name = node.path("name").asText();
@@ -147,24 +195,20 @@ public class AgencyDownloader {
             String displayName = node.path("display_name").asText();
             String sortableName = node.path("sortable_name").asText();
             String slug = node.path("slug").asText();
+            if (!options.includesAgency(slug, name)) continue;
             String agencySlug = Utils.slugify(name);
             Path agencyRoot = Paths.get(OUTPUT_ROOT.toString(), "Agencies", agencySlug);
             Files.createDirectories(agencyRoot);
             AgencyDescriptor agencyDescriptor = new AgencyDescriptor(name, shortName, displayName, sortableName, slug, agencyRoot);
             JsonNode cfrRefs = node.path("cfr_references");
-            List<PartDescriptor> agencyParts = new ArrayList<>();
             if (cfrRefs != null && cfrRefs.isArray()) {
                 for (JsonNode cfrRef : cfrRefs) {
                     String titleNumber = cfrRef.path("title").asText();
                     String chapterName = cfrRef.path("chapter").asText();
-                    if (chapterName != null && !chapterName.isEmpty()) {
+                    if (chapterName != null && !chapterName.isEmpty() && options.includesChapter(chapterName)) {
                         for (TitleDescriptor titleDescriptor : titleDescriptorList) {
                             if (titleDescriptor.getNumber().trim().equalsIgnoreCase(titleNumber)) {
-                                ChapterDescriptor chapterDescriptor = chapterLocator.findChapter(titleDescriptor, agencyDescriptor, chapterName);
-                                if (chapterDescriptor != null) {
-                                    agencyDescriptor.addTitleDescriptor(titleDescriptor);
-                                    agencyDescriptor.addAgencyChapter(chapterDescriptor);
-                                }
+                                lookups.add(new ChapterLookup(agencyDescriptor, titleDescriptor, chapterName));
                                 break;
                             }
                         }
@@ -173,20 +217,34 @@ public class AgencyDownloader {
             }
             allAgencies.add(agencyDescriptor);
         }
-        saveAgencyList(allAgencies);
+
+        // The /ancestry look-ups are independent of each other; run them side by side.
+        if (chapterLocator != null) {
+            DownloadPool.runAll(lookups, lookup ->
+                    lookup.found = chapterLocator.findChapter(lookup.title, lookup.agency, lookup.chapterName));
+        } else {
+            for (ChapterLookup lookup : lookups) {
+                lookup.found = new ChapterDescriptor(lookup.chapterName, lookup.title, lookup.agency);
+            }
+        }
+        for (ChapterLookup lookup : lookups) {
+            if (lookup.found != null) {
+                lookup.agency.addTitleDescriptor(lookup.title);
+                lookup.agency.addAgencyChapter(lookup.found);
+            }
+        }
         return allAgencies;
     }
 
 
-    private void saveAgencyList(List<AgencyDescriptor> agencyDescriptorList) throws IOException {
+    public void saveAgencyList(List<AgencyDescriptor> agencyDescriptorList) throws IOException {
         Path agencyRoot = Paths.get(OUTPUT_ROOT.toString(), "Agencies");
         Path agencyCSVPath = Paths.get(agencyRoot.toString(), "agency.csv");
         File csvFile = agencyCSVPath.toFile();
-        if (csvFile.exists()) csvFile.delete();
-        csvFile.createNewFile();
-        Path csvPath = csvFile.toPath().toAbsolutePath().normalize();
-        Path relativePartPath = currentWorkingDirectoryPath.relativize(csvPath);
-        try (PrintStream outputFileStream = new PrintStream(csvFile)) {
+        Files.createDirectories(agencyRoot);
+        // Written aside and moved into place: sharded workers may all save the same list at once.
+        Path partial = Files.createTempFile(agencyRoot, "agency", ".csv.tmp");
+        try (PrintStream outputFileStream = new PrintStream(partial.toFile())) {
             for (AgencyDescriptor agency : agencyDescriptorList) {
                 outputFileStream.printf("\"%s\",\"%s\",\"%s\",\"%s\",\"%s\",\"%s\",\"%s\",\"%s\"\n",
                                         agency.getName(),
@@ -200,6 +258,7 @@ public class AgencyDownloader {
 
             }
         }
+        Files.move(partial, csvFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 
 
@@ -207,26 +266,15 @@ public class AgencyDownloader {
     /** GET /titles/{title}/parts/{part} → raw XML for a single part. */
     private String fetchPartXml(TitleDescriptor titleDetails, ChapterDescriptor chapterDescriptor)
             throws IOException, InterruptedException {
-        String date = titleDetails.getLatestAmendedOn();
+        String date = options.getDate() != null ? options.getDate() : titleDetails.getLatestAmendedOn();
         // https://www.ecfr.gov/api/versioner/v1/full/2022-12-29/title-2.xml"
         String url = API_BASE_URL
                 + ENDPOINT_XML_PART
                 + String.format("/%s/title-%s.xml?chapter=%s", date, titleDetails.getNumber(), chapterDescriptor.getChapterName());
         HttpRequest request = buildRequest(url, "application/xml");
-        HttpResponse<String> resp = httpClient.send(request,
-                                                    HttpResponse.BodyHandlers.ofString());
+        HttpResponse<String> resp = AdaptiveConcurrencyLimiter.shared().send(httpClient, request,
+                                                    HttpCompression.ofString());
         int status = resp.statusCode();
-        // 429 – respect Retry-After header
-        if (status == 429) {
-            long waitSec = resp.headers()
-                    .firstValue("Retry-After")
-                    .map(Long::parseLong)
-                    .orElse(5L);
-            System.out.println("Rate‑limit hit – sleeping " + waitSec + " s");
-            TimeUnit.SECONDS.sleep(waitSec);
-            // retry once
-            return fetchPartXml(titleDetails, chapterDescriptor);
-        }
         if (status == 404) {
             System.out.printf("\015\033[KXML not found: Title [\033[31m%s\033[0m] Chapter %s\n",
                               titleDetails.getNumber(),
@@ -247,6 +295,7 @@ public class AgencyDownloader {
         HttpRequest.Builder builder = HttpRequest.newBuilder()
                 .uri(URI.create(url))
                 .header("Accept", acceptHeader)
+                .header("Accept-Encoding", HttpCompression.ACCEPT_ENCODING)
                 .GET();
         return builder.build();
         /*
@@ -258,22 +307,47 @@ public class AgencyDownloader {
          */
     }
 
+    /** Directory holding an agency's chapters for one title, e.g. {@code output/Agencies/<slug>/Title-05}. */
+    public static Path agencyTitleDirectory(AgencyDescriptor agency, String titleNumber) {
+        return agency.getAgencyOutputPath().resolve("Title-" + String.format("%02d", Integer.parseInt(titleNumber.trim())));
+    }
+
+    /** File name used for a stored chapter, e.g. {@code chapter-XIV.xml}. */
+    public static String chapterFileName(String chapterNumber) {
+        String safeChapter = chapterNumber.replaceAll("[^0-9A-Za-z]", "_");
+        return "chapter-" + safeChapter + ".xml";
+    }
+
     /** Write the XML payload to a file named “part‑<number>.xml”. */
     private void savePartXml(Path titleDir, String chapterNumber, String xml) {
-        String safeChapter = chapterNumber.replaceAll("[^0-9A-Za-z]", "_");
-        Path outFile = titleDir.resolve("chapter-" + safeChapter + ".xml");
+        Path outFile = titleDir.resolve(chapterFileName(chapterNumber));
         Path outPath = outFile.toAbsolutePath().normalize();
         Path relativePartPath = currentWorkingDirectoryPath.relativize(outPath);
         try {
             Files.writeString(outFile, xml,
                               StandardOpenOption.CREATE,
                               StandardOpenOption.TRUNCATE_EXISTING);
+            ContentCache.shared().invalidate(outFile);
         } catch (IOException e) {
             throw new UncheckedIOException("Unable to write " + outFile, e);
         }
         System.out.printf("Saved to file .../%s\n", relativePartPath);
     }
 
+    /** One agency chapter reference waiting for its {@code /ancestry} check. */
+    private static class ChapterLookup {
+        final AgencyDescriptor agency;
+        final TitleDescriptor title;
+        final String chapterName;
+        volatile ChapterDescriptor found;
+
+        ChapterLookup(AgencyDescriptor agency, TitleDescriptor title, String chapterName) {
+            this.agency = agency;
+            this.title = title;
+            this.chapterName = chapterName;
+        }
+    }
+
     /* --------------------------------------------------------------- */
     /** Very small utility: URL‑encode a query‑parameter value. */
     private static String encode(String s) {
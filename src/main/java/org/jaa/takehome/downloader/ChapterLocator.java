@@ -31,8 +31,15 @@ public class ChapterLocator {
     /** Jackson ObjectMapper – used for JSON <-> POJO conversion. */
     private final ObjectMapper mapper = new ObjectMapper();
     private final HttpClient httpClient;
+    /** As-of date for the ancestry look-ups, or {@code null} for each title's latest issue date. */
+    private final String asOfDate;
 
     public ChapterLocator() {
+        this(null);
+    }
+
+    public ChapterLocator(String asOfDate) {
+        this.asOfDate = asOfDate;
         this.httpClient = HttpClient.newBuilder()
                 .connectTimeout(Duration.ofSeconds(20))
                 .followRedirects(HttpClient.Redirect.NORMAL)
@@ -41,7 +48,7 @@ public class ChapterLocator {
 
     public ChapterDescriptor findChapter(TitleDescriptor titleDescriptor, AgencyDescriptor agencyDescriptor, String chapter) throws IOException, InterruptedException {
         ChapterDescriptor chapterDescriptor = null;
-        String date = titleDescriptor.getLatestIssueDate();
+        String date = asOfDate != null ? asOfDate : titleDescriptor.getLatestIssueDate();
         String title = titleDescriptor.getNumber();
         System.out.printf("Attempting to locate chapter \033[32m%s\033[0m, for Agency \033[34m%s\033[0mfor title \033[33m%s\033[0m on date \033[34m%s\033[0m",
                           chapter, agencyDescriptor.getName(), title, date);
@@ -55,7 +62,7 @@ public class ChapterLocator {
                 + "?chapter="
                 + chapter;
         HttpRequest request = buildRequest(url, "application/json");
-        HttpResponse<String> resp = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        HttpResponse<String> resp = AdaptiveConcurrencyLimiter.shared().send(httpClient, request, HttpCompression.ofString());
         int status = resp.statusCode();
         Utils.ensureSuccess(request, resp, "Failed to locate chapter " + chapter + "for title " + titleDescriptor.getName());
         JsonNode root = mapper.readTree(resp.body());
@@ -65,6 +72,7 @@ public class ChapterLocator {
             if (type.equalsIgnoreCase("chapter")) {
                 String label = node.get("label").asText();
                 chapterDescriptor = new ChapterDescriptor(chapter, titleDescriptor, agencyDescriptor);
+                chapterDescriptor.setSize(node.path("size").asLong(-1));
                 System.out.printf("\015\033[KFound Chapter \033[32m%s\033[0m Named \033[35m%s\033[0m for title \033[33m%s\033[0m\n", chapter, label, title);
                 return chapterDescriptor;
             }
@@ -79,6 +87,7 @@ public class ChapterLocator {
         HttpRequest.Builder builder = HttpRequest.newBuilder()
                 .uri(URI.create(url))
                 .header("Accept", acceptHeader)
+                .header("Accept-Encoding", HttpCompression.ACCEPT_ENCODING)
                 .GET();
         return builder.build();
     }
@@ -0,0 +1,82 @@
+package org.jaa.takehome.downloader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.ToLongFunction;
+
+import static org.jaa.takehome.Constants.MAX_CONCURRENCY;
+
+/**
+ * Runs one download task per item on a pool of {@code MAX_CONCURRENCY} workers.
+ *
+ * <p>The pool only bounds the number of workers; how many requests are actually on the wire
+ * at once is decided by the shared {@link AdaptiveConcurrencyLimiter} that every downloader
+ * sends through.  The first failure cancels the remaining tasks and is rethrown.
+ *
+ * <p>Workers take tasks in submission order, so {@link #runLargestFirst} gets
+ * longest-first scheduling simply by sorting: the big downloads start at once and the small
+ * ones fill the remaining slots as they free up, instead of one large straggler being
+ * started last and holding up the end of the run.
+ */
+public final class DownloadPool {
+
+    /** One unit of download work. */
+    public interface Task<T> {
+        void run(T item) throws IOException, InterruptedException;
+    }
+
+    private DownloadPool() {
+    }
+
+    /**
+     * {@link #runAll} with the items started in decreasing order of {@code size}; items of
+     * unknown size (negative) keep their order and go after the sized ones.
+     */
+    public static <T> void runLargestFirst(Collection<T> items, ToLongFunction<T> size, Task<T> task)
+            throws IOException, InterruptedException {
+        List<T> ordered = new ArrayList<>(items);
+        ordered.sort(Comparator.comparingLong((T item) -> Math.max(-1L, size.applyAsLong(item))).reversed());
+        runAll(ordered, task);
+    }
+
+    public static <T> void runAll(Collection<T> items, Task<T> task) throws IOException, InterruptedException {
+        if (items.isEmpty()) return;
+        if (items.size() == 1) {
+            task.run(items.iterator().next());
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(MAX_CONCURRENCY, items.size()), r -> {
+            Thread t = new Thread(r, "ecfr-download");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            CompletionService<Void> completion = new ExecutorCompletionService<>(pool);
+            List<Future<Void>> futures = new ArrayList<>(items.size());
+            for (T item : items) {
+                futures.add(completion.submit(() -> {
+                    task.run(item);
+                    return null;
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    completion.take().get();
+                } catch (ExecutionException e) {
+                    for (Future<Void> f : futures) f.cancel(true);
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) throw (IOException) cause;
+                    if (cause instanceof InterruptedException) throw (InterruptedException) cause;
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    throw new IOException(cause);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
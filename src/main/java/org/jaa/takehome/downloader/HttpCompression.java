@@ -0,0 +1,116 @@
+package org.jaa.takehome.downloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.UncheckedIOException;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpResponse;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * {@code Accept-Encoding} negotiation for the eCFR requests.
+ *
+ * <p>The JDK {@code HttpClient} neither asks for nor undoes content encoding, so every request
+ * builder adds {@link #ACCEPT_ENCODING} (all but the ranged requests of {@link RangedDownloader})
+ * and every response goes through one of the decoders here.  Regulation XML typically shrinks 8–10× under gzip.
+ * <ul>
+ *   <li>{@link #ofString()} – drop-in for {@code BodyHandlers.ofString()} (JSON, chapter XML);</li>
+ *   <li>{@link #decodedBody(HttpResponse)} – wraps an {@code ofInputStream()} body so large title
+ *       XML is inflated while it is streamed to disk.</li>
+ * </ul>
+ * Responses without {@code Content-Encoding} (or with {@code identity}) pass through untouched.
+ */
+public final class HttpCompression {
+
+    public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private HttpCompression() {
+    }
+
+    /** Body handler producing the decoded body as a string (charset from {@code Content-Type}, UTF-8 by default). */
+    public static HttpResponse.BodyHandler<String> ofString() {
+        return info -> HttpResponse.BodySubscribers.mapping(
+                HttpResponse.BodySubscribers.ofByteArray(),
+                bytes -> {
+                    if (hasNoBody(info.statusCode()) || bytes.length == 0) return "";
+                    try (InputStream in = decode(new ByteArrayInputStream(bytes), info.headers())) {
+                        return new String(in.readAllBytes(), charset(info.headers()));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Unable to decode response body", e);
+                    }
+                });
+    }
+
+    /** The body of an {@code ofInputStream()} response, inflated according to its {@code Content-Encoding}. */
+    public static InputStream decodedBody(HttpResponse<InputStream> response) throws IOException {
+        if (hasNoBody(response.statusCode())) return response.body();
+        return decode(response.body(), response.headers());
+    }
+
+    /* --------------------------------------------------------------- */
+    /** 204 and 304 never carry a body, whatever their {@code Content-Encoding} says. */
+    private static boolean hasNoBody(int status) {
+        return status == 204 || status == 304;
+    }
+
+    /**
+     * An empty body is passed through as it is: a {@code HEAD} or revalidation response may still
+     * name the encoding of the representation it describes.
+     */
+    private static InputStream decode(InputStream in, HttpHeaders headers) throws IOException {
+        String encoding = headers.firstValue("Content-Encoding").orElse("identity").trim().toLowerCase(Locale.ROOT);
+        switch (encoding) {
+            case "gzip":
+            case "x-gzip":
+                PushbackInputStream gzip = new PushbackInputStream(in, 1);
+                int first = gzip.read();
+                if (first == -1) return gzip;
+                gzip.unread(first);
+                return new GZIPInputStream(gzip, 1 << 16);
+            case "deflate":
+                return inflate(in);
+            case "identity":
+            case "":
+                return in;
+            default:
+                throw new IOException("Unsupported Content-Encoding: " + encoding);
+        }
+    }
+
+    /**
+     * "deflate" is specified as zlib-wrapped, but some servers send raw deflate; the two-byte
+     * zlib header (method 8, and a check value making it a multiple of 31) tells them apart.
+     */
+    private static InputStream inflate(InputStream in) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(in, 2);
+        int first = pushback.read();
+        if (first == -1) return pushback;
+        int second = pushback.read();
+        if (second != -1) pushback.unread(second);
+        pushback.unread(first);
+        boolean zlib = second != -1 && (first & 0x0F) == 8 && ((first << 8) | second) % 31 == 0;
+        return new InflaterInputStream(pushback, new Inflater(!zlib), 1 << 16);
+    }
+
+    private static Charset charset(HttpHeaders headers) {
+        String contentType = headers.firstValue("Content-Type").orElse("");
+        for (String param : contentType.split(";")) {
+            String p = param.trim();
+            if (p.toLowerCase(Locale.ROOT).startsWith("charset=")) {
+                try {
+                    return Charset.forName(p.substring("charset=".length()).replace("\"", ""));
+                } catch (IllegalArgumentException e) {
+                    break;
+                }
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+}
@@ -0,0 +1,188 @@
+package org.jaa.takehome.downloader;
+
+import java.io.*;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import static org.jaa.takehome.Constants.RANGED_CHUNK_BYTES;
+import static org.jaa.takehome.Constants.RANGED_DOWNLOAD_MIN_BYTES;
+import static org.jaa.takehome.Constants.REQUEST_DELAY_MS;
+
+/**
+ * Parallel, resumable download of one large document with HTTP {@code Range} requests.
+ *
+ * <p>A {@code HEAD} request checks for {@code Accept-Ranges: bytes} and the length.  The
+ * document is then fetched in chunks of {@code ecfr.rangeChunkBytes} (8 MB by default), side
+ * by side on the {@link DownloadPool}, each written at its offset into
+ * {@code <target>.part}.  Every finished chunk is appended to {@code <target>.part.progress},
+ * whose first line records the length, chunk size and validator ({@code ETag} or
+ * {@code Last-Modified}).  A later attempt with the same header line skips the chunks already
+ * listed, so a dropped connection costs at most the chunks that were in flight.  Chunks are
+ * requested with {@code If-Range}; if the document changed, the server answers {@code 200}
+ * and the partial file is discarded.  Without a validator a length match proves nothing, so
+ * such a document is never resumed: any partial file is discarded and the download starts over.
+ *
+ * <p>Ranged requests go out without {@code Accept-Encoding}: byte ranges of a compressed
+ * representation the server produces on the fly are not stable between requests.
+ */
+public class RangedDownloader {
+
+    private static final int ATTEMPTS = 4;
+
+    private final HttpClient httpClient;
+    private final String userAgent;
+
+    public RangedDownloader(HttpClient httpClient, String userAgent) {
+        this.httpClient = httpClient;
+        this.userAgent = userAgent;
+    }
+
+    /**
+     * Download {@code url} to {@code target} in ranges.
+     *
+     * @return bytes written, or {@code -1} when the server does not offer ranges or the
+     *         document is too small to bother; the caller then downloads it in one piece
+     */
+    public long download(String url, Path target) throws IOException, InterruptedException {
+        return download(url, target, -1);
+    }
+
+    /**
+     * {@link #download(String, Path)} with the expected size of the document ({@code -1} when
+     * unknown): below {@code ecfr.rangedMinBytes} it returns {@code -1} at once,
+     * without the {@code HEAD} request.
+     */
+    public long download(String url, Path target, long sizeHint) throws IOException, InterruptedException {
+        if (sizeHint >= 0 && sizeHint < RANGED_DOWNLOAD_MIN_BYTES) return -1;
+        HttpRequest head = request(url).method("HEAD", HttpRequest.BodyPublishers.noBody()).build();
+        HttpResponse<Void> probe = AdaptiveConcurrencyLimiter.shared().send(httpClient, head, HttpResponse.BodyHandlers.discarding());
+        long length = probe.headers().firstValueAsLong("Content-Length").orElse(-1L);
+        boolean ranges = probe.headers().allValues("Accept-Ranges").stream().anyMatch(v -> v.contains("bytes"));
+        if (probe.statusCode() != 200 || !ranges || length < RANGED_DOWNLOAD_MIN_BYTES) return -1;
+        String validator = probe.headers().firstValue("ETag")
+                .orElse(probe.headers().firstValue("Last-Modified").orElse(""));
+
+        Path part = target.resolveSibling(target.getFileName() + ".part");
+        Path progress = target.resolveSibling(target.getFileName() + ".part.progress");
+        String header = length + " " + RANGED_CHUNK_BYTES + " " + validator;
+        Set<Integer> done = validator.isEmpty() ? null : readProgress(progress, header, part);
+        if (done == null) {
+            Files.deleteIfExists(part);
+            Files.writeString(progress, header + "\n", StandardCharsets.UTF_8);
+            done = new HashSet<>();
+        }
+
+        int chunks = (int) ((length + RANGED_CHUNK_BYTES - 1) / RANGED_CHUNK_BYTES);
+        List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < chunks; i++) if (!done.contains(i)) pending.add(i);
+        System.out.printf("\n\tRanged download of %,d bytes: %d of %d chunk(s) left%s\n",
+                          length, pending.size(), chunks, done.isEmpty() ? "" : " (resuming)");
+
+        try (FileChannel file = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             Writer log = Files.newBufferedWriter(progress, StandardCharsets.UTF_8, StandardOpenOption.APPEND)) {
+            DownloadPool.runAll(pending, chunk -> {
+                fetchChunk(url, validator, chunk, length, file);
+                // A chunk is only recorded once its bytes are on disk, or a crash could leave
+                // the progress file listing chunks a resume would then skip over.
+                file.force(false);
+                synchronized (log) {
+                    log.write(chunk + "\n");
+                    log.flush();
+                }
+            });
+        } catch (RangeNotHonouredException e) {
+            Files.deleteIfExists(part);
+            Files.deleteIfExists(progress);
+            System.out.printf("\t\033[33m%s; downloading in one piece\033[0m\n", e.getMessage());
+            return -1;
+        }
+        Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(progress);
+        return length;
+    }
+
+    /* --------------------------------------------------------------- */
+    private void fetchChunk(String url, String validator, int chunk, long length, FileChannel file)
+            throws IOException, InterruptedException {
+        long from = (long) chunk * RANGED_CHUNK_BYTES;
+        long to = Math.min(length, from + RANGED_CHUNK_BYTES) - 1;
+        HttpRequest.Builder builder = request(url).header("Range", "bytes=" + from + "-" + to).GET();
+        if (!validator.isEmpty()) builder.header("If-Range", validator);
+        HttpRequest request = builder.build();
+        IOException last = null;
+        for (int attempt = 1; attempt <= ATTEMPTS; attempt++) {
+            try {
+                AdaptiveConcurrencyLimiter.shared().sendAndConsume(httpClient, request, HttpResponse.BodyHandlers.ofInputStream(),
+                        response -> {
+                            try (InputStream body = response.body()) {
+                                if (response.statusCode() == 200) {
+                                    throw new RangeNotHonouredException("Server ignored the range (document changed?)");
+                                }
+                                if (response.statusCode() != 206) {
+                                    throw new IOException("HTTP " + response.statusCode() + " for bytes " + from + "-" + to);
+                                }
+                                copyAt(body, file, from, to - from + 1);
+                            }
+                            return null;
+                        });
+                return;
+            } catch (RangeNotHonouredException e) {
+                throw e;
+            } catch (IOException e) {
+                last = e;
+                Thread.sleep(REQUEST_DELAY_MS * attempt * 10);
+            }
+        }
+        throw last;
+    }
+
+    /** Write exactly {@code expected} bytes from {@code in} to {@code file} starting at {@code position}. */
+    private static void copyAt(InputStream in, FileChannel file, long position, long expected) throws IOException {
+        byte[] buffer = new byte[1 << 16];
+        long written = 0;
+        int n;
+        while (written < expected && (n = in.read(buffer, 0, (int) Math.min(buffer.length, expected - written))) > 0) {
+            ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, n);
+            while (chunk.hasRemaining()) written += file.write(chunk, position + written);
+        }
+        if (written != expected) {
+            throw new EOFException("Range at " + position + " ended after " + written + " of " + expected + " bytes");
+        }
+    }
+
+    /** Chunks already completed, or {@code null} when there is nothing usable to resume from. */
+    private static Set<Integer> readProgress(Path progress, String header, Path part) throws IOException {
+        if (!Files.exists(progress) || !Files.exists(part)) return null;
+        List<String> lines = Files.readAllLines(progress, StandardCharsets.UTF_8);
+        if (lines.isEmpty() || !lines.get(0).equals(header)) return null;
+        Set<Integer> done = new HashSet<>();
+        for (String line : lines.subList(1, lines.size())) {
+            try {
+                done.add(Integer.parseInt(line.trim()));
+            } catch (NumberFormatException e) {
+                // A line cut short by a crash: that chunk is simply fetched again.
+            }
+        }
+        return done;
+    }
+
+    private HttpRequest.Builder request(String url) {
+        return HttpRequest.newBuilder().uri(URI.create(url)).header("User-Agent", userAgent);
+    }
+
+    /** The server answered a ranged request with the whole document. */
+    private static class RangeNotHonouredException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RangeNotHonouredException(String message) {
+            super(message);
+        }
+    }
+}
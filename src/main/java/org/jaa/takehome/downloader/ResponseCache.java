@@ -0,0 +1,198 @@
+package org.jaa.takehome.downloader;
+
+import java.io.*;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLSession;
+
+import static org.jaa.takehome.Constants.HTTP_CACHE_DIRECTORY;
+import static org.jaa.takehome.Constants.HTTP_CACHE_TTL_MINUTES;
+
+/**
+ * Disk-backed cache of the metadata responses ({@code agencies.json}, {@code titles.json},
+ * {@code versions/title-N.json}), which change at most daily but are fetched on every run.
+ *
+ * <p>Each URL maps to one file under {@code output/.http-cache/}, named by the SHA-1 of the
+ * URL, holding the decoded body after a short header: the URL, the time the body was last
+ * confirmed, and its {@code ETag}, {@code Last-Modified} and {@code Content-Type}.  An entry
+ * younger than the TTL ({@code -Decfr.httpCacheTtlMinutes}, 6 hours by default) is returned
+ * without touching the network.  An older one is revalidated with {@code If-None-Match} /
+ * {@code If-Modified-Since}: a {@code 304} refreshes its timestamp and the stored body is
+ * returned, a {@code 200} replaces it.  Only {@code 200} responses are stored, never those
+ * marked {@code no-store}; a negative TTL turns the cache off.
+ *
+ * <p>Entries are written through a temporary file and renamed into place, so parallel
+ * downloads and concurrent runs only ever see whole entries.  Callers get an ordinary
+ * {@code HttpResponse<String>} either way.
+ */
+public final class ResponseCache {
+
+    private static final ResponseCache SHARED = new ResponseCache(HTTP_CACHE_DIRECTORY, HTTP_CACHE_TTL_MINUTES * 60_000L);
+
+    private final Path directory;
+    private final long ttlMs;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong revalidated = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public ResponseCache(Path directory, long ttlMs) {
+        this.directory = directory;
+        this.ttlMs = ttlMs;
+    }
+
+    public static ResponseCache shared() {
+        return SHARED;
+    }
+
+    /* --------------------------------------------------------------- */
+    /** GET {@code request} through the cache with the configured TTL. */
+    public HttpResponse<String> send(HttpClient client, HttpRequest request) throws IOException, InterruptedException {
+        return send(client, request, ttlMs);
+    }
+
+    /**
+     * GET {@code request} through the cache, serving a stored body without a request while it is
+     * younger than {@code maxAgeMs}; {@code 0} always revalidates.
+     */
+    public HttpResponse<String> send(HttpClient client, HttpRequest request, long maxAgeMs)
+            throws IOException, InterruptedException {
+        if (ttlMs < 0 || !"GET".equals(request.method())) {
+            return AdaptiveConcurrencyLimiter.shared().send(client, request, HttpCompression.ofString());
+        }
+        Path file = entryPath(request.uri());
+        Entry entry = Entry.read(file);
+        if (entry != null && System.currentTimeMillis() - entry.storedAt < Math.min(maxAgeMs, ttlMs)) {
+            hits.incrementAndGet();
+            return entry.toResponse(request);
+        }
+
+        HttpRequest.Builder conditional = HttpRequest.newBuilder(request, (name, value) -> true);
+        if (entry != null && !entry.etag.isEmpty()) conditional.header("If-None-Match", entry.etag);
+        if (entry != null && !entry.lastModified.isEmpty()) conditional.header("If-Modified-Since", entry.lastModified);
+        HttpResponse<String> response = AdaptiveConcurrencyLimiter.shared().send(client, conditional.build(),
+                                                                                 HttpCompression.ofString());
+        if (response.statusCode() == 304 && entry != null) {
+            revalidated.incrementAndGet();
+            entry.storedAt = System.currentTimeMillis();
+            entry.etag = response.headers().firstValue("ETag").orElse(entry.etag);
+            entry.lastModified = response.headers().firstValue("Last-Modified").orElse(entry.lastModified);
+            entry.write(file);
+            return entry.toResponse(request);
+        }
+        misses.incrementAndGet();
+        boolean noStore = response.headers().allValues("Cache-Control").stream().anyMatch(v -> v.contains("no-store"));
+        if (response.statusCode() == 200 && !noStore) {
+            new Entry(request.uri().toString(), System.currentTimeMillis(),
+                      response.headers().firstValue("ETag").orElse(""),
+                      response.headers().firstValue("Last-Modified").orElse(""),
+                      response.headers().firstValue("Content-Type").orElse(""),
+                      response.body()).write(file);
+        }
+        return response;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits=%,d revalidated=%,d fetched=%,d", hits.get(), revalidated.get(), misses.get());
+    }
+
+    /* --------------------------------------------------------------- */
+    private Path entryPath(URI uri) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(uri.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(digest.length * 2 + 5);
+            for (byte b : digest) name.append(String.format("%02x", b));
+            return directory.resolve(name.append(".http").toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** One stored response: five header lines, a blank line, then the body. */
+    private static final class Entry {
+        final String url;
+        long storedAt;
+        String etag;
+        String lastModified;
+        final String contentType;
+        final String body;
+
+        Entry(String url, long storedAt, String etag, String lastModified, String contentType, String body) {
+            this.url = url;
+            this.storedAt = storedAt;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.contentType = contentType;
+            this.body = body;
+        }
+
+        /** The entry in {@code file}, or {@code null} when there is none or it cannot be read. */
+        static Entry read(Path file) {
+            if (!Files.exists(file)) return null;
+            try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String url = in.readLine();
+                long storedAt = Long.parseLong(in.readLine());
+                String etag = in.readLine();
+                String lastModified = in.readLine();
+                String contentType = in.readLine();
+                if (contentType == null || !"".equals(in.readLine())) return null;
+                StringWriter body = new StringWriter();
+                in.transferTo(body);
+                return new Entry(url, storedAt, etag, lastModified, contentType, body.toString());
+            } catch (IOException | RuntimeException e) {
+                return null;   // damaged entry: fetch again
+            }
+        }
+
+        void write(Path file) throws IOException {
+            Files.createDirectories(file.getParent());
+            Path partial = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            try (Writer out = Files.newBufferedWriter(partial, StandardCharsets.UTF_8)) {
+                out.write(url + "\n" + storedAt + "\n" + etag + "\n" + lastModified + "\n" + contentType + "\n\n");
+                out.write(body);
+            }
+            Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        HttpResponse<String> toResponse(HttpRequest request) {
+            Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            if (!etag.isEmpty()) headers.put("ETag", List.of(etag));
+            if (!lastModified.isEmpty()) headers.put("Last-Modified", List.of(lastModified));
+            if (!contentType.isEmpty()) headers.put("Content-Type", List.of(contentType));
+            return new CachedResponse(request, HttpHeaders.of(headers, (name, value) -> true), body);
+        }
+    }
+
+    /** A stored body presented as a {@code 200} response to the original request. */
+    private static final class CachedResponse implements HttpResponse<String> {
+        private final HttpRequest request;
+        private final HttpHeaders headers;
+        private final String body;
+
+        CachedResponse(HttpRequest request, HttpHeaders headers, String body) {
+            this.request = request;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        @Override public int statusCode() { return 200; }
+        @Override public HttpRequest request() { return request; }
+        @Override public Optional<HttpResponse<String>> previousResponse() { return Optional.empty(); }
+        @Override public HttpHeaders headers() { return headers; }
+        @Override public String body() { return body; }
+        @Override public Optional<SSLSession> sslSession() { return Optional.empty(); }
+        @Override public URI uri() { return request.uri(); }
+        @Override public HttpClient.Version version() { return HttpClient.Version.HTTP_1_1; }
+    }
+}
@@ -3,9 +3,9 @@ package org.jaa.takehome.downloader;
 import java.io.*;
 import java.net.URI;
 import java.net.http.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.time.Duration;
-import java.time.Instant;
 import java.util.*;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
@@ -48,11 +48,14 @@ public class TitleDownloader {
     /** Max number of items per page the API accepts (100 is the documented max). */
     private static final int PAGE_SIZE = 100;
 
-    /** Minimum number of remaining requests before we pause (safety margin). */
-    private static final int SAFETY_REMAINING = 5;
+    /** Ranged, resumable downloads of large title XML over the same client. */
+    private final RangedDownloader rangedDownloader;
 
-    /** Minimum sleep (ms) when we have to wait for the rate‑limit reset. */
-    private static final long MIN_SLEEP_MS = 1_000L;
+    /** How old a cached {@code titles.json} may be before it is revalidated. */
+    private long titlesMaxAgeMs = Long.MAX_VALUE;
+
+    /** As-of date for the full title XML, or {@code null} for each title's {@code latestAmendedOn}. */
+    private String asOfDate;
 
     public TitleDownloader() {
         this.httpClient = HttpClient.newBuilder()
@@ -60,17 +63,23 @@ public class TitleDownloader {
                 .connectTimeout(Duration.ofSeconds(20))
                 .version(HttpClient.Version.HTTP_2)
                 .build();
+        this.rangedDownloader = new RangedDownloader(httpClient, USER_AGENT);
     }
 
 
+    public void setAsOfDate(String asOfDate) { this.asOfDate = asOfDate; }
+
+    /** Revalidate a cached {@code titles.json} once it is older than this ({@code 0}: on every call). */
+    public void setTitlesMaxAgeMs(long titlesMaxAgeMs) { this.titlesMaxAgeMs = titlesMaxAgeMs; }
+
     public void saveAllTitles(List<TitleDescriptor> allTitles) throws IOException, InterruptedException {
         File output = OUTPUT_ROOT.toFile();
         output.mkdirs();
         File csvFile = new File(output,"titles.csv");
-        if (csvFile.exists()) csvFile.delete();
-        csvFile.createNewFile();
         System.out.print("Retrieving all titles ... ");
-        try (PrintStream outputFileStream = new PrintStream(csvFile)) {
+        // Written aside and moved into place: sharded workers may all save the same list at once.
+        Path partial = Files.createTempFile(output.toPath(), "titles", ".csv.tmp");
+        try (PrintStream outputFileStream = new PrintStream(partial.toFile())) {
             for (TitleDescriptor title : allTitles) {
                 outputFileStream.printf("\"%s\",\"%s\",\"%s\",\"%s\",\"%s\"\n",
                                         title.number,
@@ -81,32 +90,59 @@ public class TitleDownloader {
 
             }
         }
+        Files.move(partial, csvFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
         System.out.printf("Retrieved %d titles and stored as csv file named %s\n",
                           allTitles.size(),
                           csvFile.getName());
 
     }
 
-    public void retrieveAndSaveTitleXml(TitleDescriptor title) throws IOException, InterruptedException {
-        File output = OUTPUT_ROOT.toFile();
-        File partDetailsDirectory = new File(output, "title-" + title.number);
-        partDetailsDirectory.mkdirs();
-        File partDetailsFile = new File(partDetailsDirectory, "title-" + title.getNumber() + ".xml");
+    /** Location of the full XML for a title, e.g. {@code output/AllTitles/title-40/title-40.xml}. */
+    public static Path titleXmlPath(String titleNumber) {
+        return OUTPUT_ROOT.resolve("title-" + titleNumber).resolve("title-" + titleNumber + ".xml");
+    }
+
+    /**
+     * Download the full title XML to {@link #titleXmlPath}; returns {@code false} when nothing was saved.
+     * The (possibly gzip-compressed) body is decoded while it streams to a temporary file, so the
+     * title is never held in memory, and moved into place only once it is complete.  Large
+     * titles are fetched in resumable parallel ranges instead when the server supports it.
+     */
+    public boolean retrieveAndSaveTitleXml(TitleDescriptor title) throws IOException, InterruptedException {
+        return retrieveAndSaveTitleXml(title, -1);
+    }
+
+    /**
+     * {@link #retrieveAndSaveTitleXml(TitleDescriptor)} with the expected size of the title
+     * ({@code -1} when unknown); a title known to be small goes straight to a plain GET.
+     */
+    public boolean retrieveAndSaveTitleXml(TitleDescriptor title, long sizeHint) throws IOException, InterruptedException {
+        File partDetailsFile = titleXmlPath(title.getNumber()).toFile();
+        partDetailsFile.getParentFile().mkdirs();
         System.out.printf("\015\033[KTitle (\033[35m%s\033[0m; \033[36m%s\033[0m) ",
                           title.getNumber(), title.getName());
         System.out.printf(" => Writing to: \033[31m%s\033[0m ... ",
                           partDetailsFile.getAbsolutePath());
-        String xml = getFullTitleXml(title);
-        if (xml != null && !xml.isEmpty()) {
-            double kb = xml.length() / 1024.0;
-            System.out.printf("Size is \033[35m%.2f\033[0m KB", kb);
-            Files.write(partDetailsFile.toPath(), xml.getBytes());
-            System.out.printf("\015\033[KTitle (\033[32m%s\033[0m; \033[33m%s\033[0m) saved to \033[32m%s\033[0m [size \033[35m%.2f\033[0m KB]\n",
-                              title.getNumber(),
-                              title.getName(),
-                              partDetailsFile.getAbsolutePath(),
-                              kb);
+        String url = getFullTitleXmlUrl(title);
+        if (url == null) return false;
+        Path target = partDetailsFile.toPath();
+        long bytes = rangedDownloader.download(url, target, sizeHint);
+        if (bytes < 0) {
+            Path partial = target.resolveSibling(target.getFileName() + ".tmp");
+            bytes = downloadTo(url, partial);
+            if (bytes <= 0) {
+                Files.deleteIfExists(partial);
+                return false;
+            }
+            Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
         }
+        double kb = bytes / 1024.0;
+        System.out.printf("\015\033[KTitle (\033[32m%s\033[0m; \033[33m%s\033[0m) saved to \033[32m%s\033[0m [size \033[35m%.2f\033[0m KB]\n",
+                          title.getNumber(),
+                          title.getName(),
+                          partDetailsFile.getAbsolutePath(),
+                          kb);
+        return true;
         //System.out.printf("Pausing for %d milliseconds ...", Constants.REQUEST_DELAY_MS);
         //try {Thread.sleep(Constants.REQUEST_DELAY_MS);} catch (InterruptedException e) { /**/ }
     }
@@ -114,7 +150,7 @@ public class TitleDownloader {
     public  List<TitleDescriptor> getAllTitlesFromEndpoint()  throws IOException, InterruptedException {
         List<TitleDescriptor> allTitles = new ArrayList<>();
         String url = API_BASE + "/titles.json";
-        HttpResponse<String> resp = sendGet(url);
+        HttpResponse<String> resp = sendGet(url, titlesMaxAgeMs);
         if (resp == null) return null;
         // The response body is a JSON object with a "titles" array.
         try {
@@ -139,17 +175,15 @@ public class TitleDownloader {
         return allTitles;
     }
 
-    protected String getFullTitleXml(TitleDescriptor title) throws IOException, InterruptedException {
+    protected String getFullTitleXmlUrl(TitleDescriptor title) {
         // https://www.ecfr.gov/api/versioner/v1/full/2022-12-29/title-2.xml"
         ; // latestAmendedOn, number
-        if (title.getLatestAmendedOn() != null && !title.getLatestAmendedOn().isEmpty()) {
-            String url = String.format("%s/%s/title-%s.xml",
-                                       ENDPOINT_PARTS,
-                                       title.latestAmendedOn,
-                                       title.number);
-            HttpResponse<String> resp = sendGet(url);
-            if (resp == null) return null;
-            return resp.body();
+        String date = asOfDate != null ? asOfDate : title.getLatestAmendedOn();
+        if (date != null && !date.isEmpty()) {
+            return String.format("%s/%s/title-%s.xml",
+                                 ENDPOINT_PARTS,
+                                 date,
+                                 title.number);
         }
         return null;
     }
@@ -158,45 +192,46 @@ public class TitleDownloader {
     /* --------------------------------------------------------------------- */
     /*   Helper: perform a GET request with proper headers & rate‑limit handling */
     /* --------------------------------------------------------------------- */
-    private HttpResponse<String> sendGet(String url) throws IOException, InterruptedException {
+    private HttpResponse<String> sendGet(String url, long maxAgeMs) throws IOException, InterruptedException {
         HttpRequest request = HttpRequest.newBuilder()
                 .uri(URI.create(url))
                 .header("User-Agent", USER_AGENT)
+                .header("Accept-Encoding", HttpCompression.ACCEPT_ENCODING)
                 .GET()
                 .build();
 
-        HttpResponse<String> response = httpClient.send(request,
-                                                HttpResponse.BodyHandlers.ofString());
+        // Rate-limit headers (X-Rate-Limit-Remaining / -Reset, 429) are handled by the shared limiter.
+        HttpResponse<String> response = ResponseCache.shared().send(httpClient, request, maxAgeMs);
         if (response.statusCode() != 200) {
             System.out.println();
             Utils.reportError(request, response, "Error getting titles from endpoint '" + url);
             return null;
         }
-
-
-        // ---- Rate‑limit handling -------------------------------------------------
-        Optional<String> remainingHeader = response.headers().firstValue("X-Rate-Limit-Remaining");
-        Optional<String> resetHeader = response.headers().firstValue("X-Rate-Limit-Reset");
-
-        if (remainingHeader.isPresent()) {
-            int remaining = Integer.parseInt(remainingHeader.get());
-            if (remaining <= SAFETY_REMAINING) {
-                // The reset header is a Unix epoch seconds timestamp.
-                long waitMs = MIN_SLEEP_MS;
-                if (resetHeader.isPresent()) {
-                    long resetEpochSec = Long.parseLong(resetHeader.get());
-                    long nowSec = Instant.now().getEpochSecond();
-                    long secsUntilReset = Math.max(0, resetEpochSec - nowSec);
-                    waitMs = Math.max(waitMs, secsUntilReset * 1000L);
-                }
-                System.out.printf("⏳ Rate limit low (remaining=%d). Sleeping %d ms…%n", remaining, waitMs);
-                Thread.sleep(waitMs);
-            }
-        }
-        // -------------------------------------------------------------------------
-
         return response;
     }
-}
-
 
+    /**
+     * Stream the decoded body of a GET into {@code target}; returns the number of bytes written,
+     * or {@code -1} after reporting a non-200 response.
+     */
+    private long downloadTo(String url, Path target) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(url))
+                .header("User-Agent", USER_AGENT)
+                .header("Accept-Encoding", HttpCompression.ACCEPT_ENCODING)
+                .GET()
+                .build();
+        return AdaptiveConcurrencyLimiter.shared().sendAndConsume(httpClient, request,
+                HttpResponse.BodyHandlers.ofInputStream(), response -> {
+                    try (InputStream body = HttpCompression.decodedBody(response)) {
+                        if (response.statusCode() != 200) {
+                            String error = new String(body.readAllBytes(), StandardCharsets.UTF_8);
+                            System.out.printf("\n\033[31mError getting title XML from endpoint '%s'\033[0m: Response Code: %d\n%s\n",
+                                              url, response.statusCode(), error);
+                            return -1L;
+                        }
+                        return Files.copy(body, target, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                });
+    }
+}
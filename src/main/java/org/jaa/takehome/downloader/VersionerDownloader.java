@@ -11,7 +11,6 @@ import java.net.http.*;
 import java.nio.file.*;
 import java.time.Duration;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
 
 import static org.jaa.takehome.Constants.*;
 
@@ -35,6 +34,8 @@ public class VersionerDownloader {
     /** Jackson ObjectMapper – used for JSON <-> POJO conversion. */
     private final ObjectMapper mapper = new ObjectMapper();
     private final HttpClient httpClient;
+    /** How old a cached {@code versions/title-N.json} may be before it is revalidated. */
+    private long maxAgeMs = Long.MAX_VALUE;
 
     public VersionerDownloader() {
         this.httpClient = HttpClient.newBuilder()
@@ -46,6 +47,9 @@ public class VersionerDownloader {
                 .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
     }
 
+    /** Revalidate cached version lists once they are older than this ({@code 0}: on every call). */
+    public void setMaxAgeMs(long maxAgeMs) { this.maxAgeMs = maxAgeMs; }
+
 
     /* --------------------------------------------------------------- */
     /** Download every part that belongs to the supplied title. */
@@ -99,20 +103,7 @@ public class VersionerDownloader {
                 + titleNumber
                 + ".json";
         HttpRequest request = buildRequest(url, "application/json");
-        HttpResponse<String> resp = httpClient.send(request,
-                                            HttpResponse.BodyHandlers.ofString());
-        int status = resp.statusCode();
-        // 429 – respect Retry-After header
-        if (status == 429) {
-            long waitSec = resp.headers()
-                    .firstValue("Retry-After")
-                    .map(Long::parseLong)
-                    .orElse(5L);
-            System.out.println("\nRate‑limit hit – sleeping " + waitSec + " s\n");
-            TimeUnit.SECONDS.sleep(waitSec);
-            // retry once
-            parts.addAll(fetchPartsForTitle(titleDescriptor));
-        }
+        HttpResponse<String> resp = ResponseCache.shared().send(httpClient, request, maxAgeMs);
         if (resp.statusCode() != 200) {
             Utils.reportError(request, resp, "Failed to list parts for title number " + titleDescriptor.getNumber() + " '" + titleDescriptor.getName() + "'");
             return null;
@@ -166,6 +157,7 @@ public class VersionerDownloader {
         HttpRequest.Builder builder = HttpRequest.newBuilder()
                 .uri(URI.create(url))
                 .header("Accept", acceptHeader)
+                .header("Accept-Encoding", HttpCompression.ACCEPT_ENCODING)
                 .GET();
         return builder.build();
     }
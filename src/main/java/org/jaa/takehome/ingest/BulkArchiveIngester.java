@@ -0,0 +1,264 @@
+package org.jaa.takehome.ingest;
+
+import org.jaa.takehome.SyncOptions;
+import org.jaa.takehome.descriptor.AgencyDescriptor;
+import org.jaa.takehome.descriptor.TitleDescriptor;
+import org.jaa.takehome.downloader.AgencyDownloader;
+import org.jaa.takehome.downloader.TitleDownloader;
+import org.jaa.takehome.snapshot.DescriptorSnapshot;
+import org.jaa.takehome.xml.HierarchyExtractor;
+import org.jaa.takehome.xml.TitleXmlSplitter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Offline ingestion of an eCFR bulk XML archive.
+ *
+ * <p>Reads a local ZIP holding one XML document per title (e.g. {@code ECFR-title40.xml} or
+ * {@code title-40.xml}) and produces the same layout as the API path:
+ * <ul>
+ *   <li>{@code output/AllTitles/titles.csv} and {@code output/AllTitles/title-N/title-N.xml}</li>
+ *   <li>{@code output/Agencies/agency.csv} and {@code output/Agencies/<slug>/Title-NN/chapter-*.xml}</li>
+ * </ul>
+ * The agency → chapter mapping comes from an {@code agencies.json} payload, either passed
+ * explicitly or found as an entry inside the archive.  Without one only the title output is
+ * produced.
+ *
+ * <p>Entries are decoded straight from the ZIP stream and processed in parallel, one title
+ * per worker; no network access is made.  Each entry is read once: the splitter parses the
+ * stream while the same bytes are written to the title XML, instead of copying the entry to
+ * disk and reading it back.  {@code --split-sections} also writes parts and sections.
+ */
+public class BulkArchiveIngester {
+
+    /** Matches {@code ECFR-title1.xml}, {@code title-1.xml}, {@code some/dir/title40.xml}, … */
+    private static final Pattern TITLE_ENTRY = Pattern.compile("(?i)(?:^|/)(?:ecfr-)?title-?(\\d+)\\.xml$");
+    private static final String AGENCIES_ENTRY = "agencies.json";
+    /** AMDDATE as printed in the XML: "Jan. 3, 2024", "Sept. 30, 2023", "May 1, 2024". */
+    private static final Pattern PRINTED_DATE = Pattern.compile("([A-Za-z]{3})[A-Za-z]*\\.?\\s+(\\d{1,2}),\\s*(\\d{4})");
+    private static final List<String> MONTHS = List.of("jan", "feb", "mar", "apr", "may", "jun",
+                                                       "jul", "aug", "sep", "oct", "nov", "dec");
+
+    private final Path archive;
+    private final Path agenciesJson;
+    private final int threads;
+    private final SyncOptions options;
+
+    public BulkArchiveIngester(Path archive, Path agenciesJson, int threads) {
+        this(archive, agenciesJson, threads, SyncOptions.all());
+    }
+
+    public BulkArchiveIngester(Path archive, Path agenciesJson, int threads, SyncOptions options) {
+        this.archive = archive;
+        this.agenciesJson = agenciesJson;
+        this.threads = Math.max(1, threads);
+        this.options = options;
+    }
+
+    /* --------------------------------------------------------------- */
+    /** Ingest every title entry in the archive. */
+    public void ingest() throws IOException, InterruptedException {
+        System.out.printf("Ingesting bulk archive \033[32m%s\033[0m with %d worker(s)\n", archive, threads);
+        try (ZipFile zip = new ZipFile(archive.toFile(), StandardCharsets.UTF_8)) {
+            Map<String, ZipEntry> titleEntries = new TreeMap<>(Comparator.comparingInt(Integer::parseInt));
+            for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+                ZipEntry entry = e.nextElement();
+                Matcher m = TITLE_ENTRY.matcher(entry.getName());
+                if (!entry.isDirectory() && m.find()) {
+                    titleEntries.put(String.valueOf(Integer.parseInt(m.group(1))), entry);
+                }
+            }
+            if (titleEntries.isEmpty()) {
+                throw new IllegalArgumentException("No title XML entries found in " + archive);
+            }
+
+            // Placeholder descriptors, completed from the XML itself as each title is split.
+            Map<String, TitleDescriptor> titles = new LinkedHashMap<>();
+            for (String number : titleEntries.keySet()) {
+                titles.put(number, new TitleDescriptor(number, "", "", "", "", false));
+            }
+            List<TitleDescriptor> allTitles = new ArrayList<>(titles.values());
+
+            AgencyDownloader agencyDownloader = new AgencyDownloader(allTitles);
+            List<AgencyDescriptor> allAgencies = loadAgencies(zip, agencyDownloader);
+            Map<String, Map<String, List<Path>>> targetsByTitle = AgencyDownloader.chapterTargets(allAgencies);
+
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                Map<String, Future<TitleXmlSplitter.Result>> pending = new LinkedHashMap<>();
+                for (Map.Entry<String, ZipEntry> e : titleEntries.entrySet()) {
+                    Map<String, List<Path>> targets = targetsByTitle.getOrDefault(e.getKey(), Collections.emptyMap());
+                    pending.put(e.getKey(), pool.submit(() -> ingestEntry(zip, e.getValue(), e.getKey(), targets)));
+                }
+                for (Map.Entry<String, Future<TitleXmlSplitter.Result>> e : pending.entrySet()) {
+                    TitleXmlSplitter.Result result = await(e.getValue());
+                    TitleDescriptor title = titles.get(e.getKey());
+                    applyResult(title, result);
+                    reportMissingChapters(title, targetsByTitle.get(e.getKey()), result);
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+
+            new TitleDownloader().saveAllTitles(allTitles);
+            if (!allAgencies.isEmpty()) {
+                agencyDownloader.saveAgencyList(allAgencies);
+            }
+            DescriptorSnapshot.save(allTitles, allAgencies, DescriptorSnapshot.DEFAULT_PATH);
+        }
+    }
+
+    /* --------------------------------------------------------------- */
+    /**
+     * Split one entry's chapters out for the agencies straight from the ZIP stream, writing the
+     * same bytes to {@code output/AllTitles} as they are parsed.
+     */
+    private TitleXmlSplitter.Result ingestEntry(ZipFile zip, ZipEntry entry, String titleNumber,
+                                                Map<String, List<Path>> targets) throws IOException {
+        Path titleXml = TitleDownloader.titleXmlPath(titleNumber);
+        Files.createDirectories(titleXml.getParent());
+        TitleXmlSplitter splitter = options.isSplitSections() ? TitleXmlSplitter.withPartsAndSections(titleXml) : new TitleXmlSplitter();
+        Path partial = titleXml.resolveSibling(titleXml.getFileName() + ".tmp");
+        TitleXmlSplitter.Result result;
+        try (InputStream entryIn = zip.getInputStream(entry);
+             OutputStream copy = new BufferedOutputStream(Files.newOutputStream(partial), 1 << 16)) {
+            InputStream in = new TeeInputStream(new BufferedInputStream(entryIn, 1 << 16), copy);
+            result = splitter.split(in, targets);
+            in.transferTo(OutputStream.nullOutputStream());   // whatever follows the root element
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(partial);
+            throw e;
+        }
+        Files.move(partial, titleXml, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        new HierarchyExtractor().extractAndSave(titleXml);
+        System.out.printf("Title \033[35m%3s\033[0m: %,12d bytes, \033[32m%3d\033[0m chapter file(s) written from \033[34m%s\033[0m\n",
+                          titleNumber, Files.size(titleXml), result.getFilesWritten().size(), entry.getName());
+        return result;
+    }
+
+    private List<AgencyDescriptor> loadAgencies(ZipFile zip, AgencyDownloader agencyDownloader)
+            throws IOException, InterruptedException {
+        String json = null;
+        if (agenciesJson != null) {
+            json = Files.readString(agenciesJson);
+        } else {
+            for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+                ZipEntry entry = e.nextElement();
+                if (entry.getName().equals(AGENCIES_ENTRY) || entry.getName().endsWith("/" + AGENCIES_ENTRY)) {
+                    try (InputStream in = zip.getInputStream(entry)) {
+                        json = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                    }
+                    break;
+                }
+            }
+        }
+        if (json == null) {
+            System.out.println("\033[33mNo agencies.json supplied; only title output will be produced\033[0m");
+            return Collections.emptyList();
+        }
+        return agencyDownloader.parseAgencyDetails(json, null);
+    }
+
+    /** Fill the placeholder descriptor from what the splitter saw, e.g. "Title 1—General Provisions". */
+    private static void applyResult(TitleDescriptor title, TitleXmlSplitter.Result result) {
+        String heading = result.getTitleHeading();
+        if (heading != null) {
+            title.setName(heading.replaceFirst("^(?i)title\\s+\\d+\\s*[—–-]+\\s*", ""));
+        }
+        String amended = isoDate(result.getAmendedDate());
+        if (amended != null) {
+            title.setLatestAmendedOn(amended);
+        }
+    }
+
+    /**
+     * "Jan. 3, 2024" → "2024-01-03", the form {@code titles.json} uses for {@code latest_amended_on};
+     * {@code null} when the date is missing or not in that form.
+     */
+    static String isoDate(String printed) {
+        if (printed == null) return null;
+        if (printed.trim().matches("\\d{4}-\\d{2}-\\d{2}")) return printed.trim();
+        Matcher m = PRINTED_DATE.matcher(printed.trim());
+        if (!m.matches()) return null;
+        int month = MONTHS.indexOf(m.group(1).toLowerCase(Locale.ROOT)) + 1;
+        if (month == 0) return null;
+        return String.format("%s-%02d-%02d", m.group(3), month, Integer.parseInt(m.group(2)));
+    }
+
+    private static void reportMissingChapters(TitleDescriptor title, Map<String, List<Path>> targets,
+                                              TitleXmlSplitter.Result result) {
+        if (targets == null) return;
+        for (String chapter : targets.keySet()) {
+            if (!result.getChaptersFound().contains(chapter)) {
+                System.out.printf("\033[31mChapter %s referenced by an agency was not found in title %s\033[0m\n",
+                                  chapter, title.getNumber());
+            }
+        }
+    }
+
+    /**
+     * Copies every byte read from the wrapped stream to {@code copy}.  Closing it is a no-op: the
+     * XML parser closes its input at the end of the document, before the rest has been copied.
+     */
+    private static final class TeeInputStream extends FilterInputStream {
+        private final OutputStream copy;
+
+        TeeInputStream(InputStream in, OutputStream copy) {
+            super(in);
+            this.copy = copy;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) copy.write(b);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = in.read(buffer, offset, length);
+            if (n > 0) copy.write(buffer, offset, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes still belong in the copy.
+            byte[] buffer = new byte[(int) Math.min(n, 1 << 13)];
+            long skipped = 0;
+            int read;
+            while (skipped < n && (read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped))) > 0) skipped += read;
+            return skipped;
+        }
+
+        @Override
+        public void close() {
+            // the caller closes the entry stream and the copy
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+}
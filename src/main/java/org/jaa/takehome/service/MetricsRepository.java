@@ -0,0 +1,344 @@
+package org.jaa.takehome.service;
+
+import org.jaa.takehome.analytics.Utf8Tokenizer;
+import org.jaa.takehome.descriptor.AgencyDescriptor;
+import org.jaa.takehome.descriptor.ChapterDescriptor;
+import org.jaa.takehome.descriptor.TitleDescriptor;
+import org.jaa.takehome.snapshot.DescriptorSnapshot;
+import org.jaa.takehome.downloader.AgencyDownloader;
+import org.jaa.takehome.utilities.Utils;
+import org.jaa.takehome.xml.HierarchyExtractor;
+import org.jaa.takehome.xml.TitleXmlSplitter;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static org.jaa.takehome.Constants.OUTPUT_ROOT;
+
+/**
+ * In-memory aggregates over a completed sync under {@code output/}.
+ *
+ * <p>The title and agency CSV files are read once, every stored chapter file is located,
+ * sized and word-counted (with the byte-level {@link Utf8Tokenizer}), and the per-agency /
+ * per-title totals are computed up front.  Word counts are kept in {@code output/word-counts.csv}
+ * with the size and modification time of the file they were taken from, so a restart only
+ * tokenizes the chapters written since.  After
+ * {@link #load()} the repository is read-only, so the query service can share it between
+ * request threads without locking.
+ */
+public class MetricsRepository {
+
+    /** A chapter file stored for an agency, plus its precomputed size and word count. */
+    public static class ChapterEntry {
+        private final ChapterDescriptor chapter;
+        private final String agencySlug;
+        private final Path file;
+        private final long bytes;
+        private final long words;
+
+        ChapterEntry(ChapterDescriptor chapter, String agencySlug, Path file, long bytes, long words) {
+            this.chapter = chapter;
+            this.agencySlug = agencySlug;
+            this.file = file;
+            this.bytes = bytes;
+            this.words = words;
+        }
+
+        public ChapterDescriptor getChapter() { return chapter; }
+        public String getAgencySlug() { return agencySlug; }
+        public String getTitleNumber() { return chapter.getTitleDescriptor().getNumber(); }
+        public String getChapterName() { return chapter.getChapterName(); }
+        public Path getFile() { return file; }
+        public long getBytes() { return bytes; }
+        public long getWords() { return words; }
+    }
+
+    private final Path outputRoot;
+    private final Map<String, TitleDescriptor> titles = new LinkedHashMap<>();
+    private final Map<String, AgencyDescriptor> agencies = new LinkedHashMap<>();
+    private final Map<String, List<ChapterEntry>> chaptersByAgency = new HashMap<>();
+    private final Map<String, List<ChapterEntry>> chaptersByTitle = new HashMap<>();
+    private final Map<String, Integer> partCounts = new HashMap<>();
+    private final Map<String, Long> titleXmlBytes = new HashMap<>();
+    /** title number → section file name ("301.1") → its row in {@code hierarchy.csv}. */
+    private final Map<String, Map<String, HierarchyExtractor.Node>> sectionsByTitle = new HashMap<>();
+    /** chapter file → {size, modified, words} from {@code word-counts.csv}, then of this load. */
+    private final Map<String, long[]> wordCounts = new LinkedHashMap<>();
+    private boolean wordCountsChanged;
+
+    public MetricsRepository() {
+        this(OUTPUT_ROOT);
+    }
+
+    public MetricsRepository(Path outputRoot) {
+        this.outputRoot = outputRoot;
+    }
+
+    /* --------------------------------------------------------------- */
+    /**
+     * Read the titles and agencies, from the descriptor snapshot when a full sync left one
+     * that is newer than the CSV files, and from the CSV files otherwise.  Chapters come from
+     * the snapshot's agency graph, or from scanning the agency directories without one.
+     */
+    public MetricsRepository load() throws IOException {
+        readWordCounts();
+        Path snapshot = outputRoot.resolve(DescriptorSnapshot.DEFAULT_PATH.getFileName());
+        if (isCurrent(snapshot)) {
+            long started = System.nanoTime();
+            DescriptorSnapshot.Graph graph = DescriptorSnapshot.load(snapshot);
+            System.out.printf("Read descriptor snapshot %s in %,d ms\n", snapshot, (System.nanoTime() - started) / 1_000_000);
+            for (TitleDescriptor title : graph.getTitles()) {
+                addTitle(title);
+                partCounts.put(title.getNumber(), title.getParts().size());
+            }
+            for (AgencyDescriptor agency : graph.getAgencies()) addAgency(agency);
+        } else {
+            loadTitles();
+            loadAgencies();
+        }
+        if (wordCountsChanged) writeWordCounts();
+        System.out.printf("Loaded \033[32m%d\033[0m titles, \033[32m%d\033[0m agencies and \033[32m%d\033[0m stored chapters from %s\n",
+                          titles.size(), agencies.size(), chaptersByAgency.values().stream().mapToInt(List::size).sum(), outputRoot);
+        return this;
+    }
+
+    /**
+     * A snapshot is only trusted when no later run rewrote the CSV files: a selective or
+     * sharded sync updates {@code titles.csv} without writing a new snapshot.
+     */
+    private boolean isCurrent(Path snapshot) throws IOException {
+        if (!Files.exists(snapshot)) return false;
+        long written = Files.getLastModifiedTime(snapshot).toMillis();
+        for (Path csv : List.of(outputRoot.resolve("AllTitles").resolve("titles.csv"),
+                                outputRoot.resolve("Agencies").resolve("agency.csv"))) {
+            if (Files.exists(csv) && Files.getLastModifiedTime(csv).toMillis() > written) {
+                System.out.printf("Descriptor snapshot %s is older than %s; reading the CSV files\n", snapshot, csv);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void loadTitles() throws IOException {
+        Path csv = outputRoot.resolve("AllTitles").resolve("titles.csv");
+        if (!Files.exists(csv)) return;
+        for (String line : Files.readAllLines(csv)) {
+            if (line.isBlank()) continue;
+            List<String> f = Utils.parseCsvLine(line);
+            TitleDescriptor title = new TitleDescriptor(f.get(0), f.get(1), f.get(2), f.get(3), f.get(4), false);
+            addTitle(title);
+
+            Path parts = outputRoot.resolve("AllTitles")
+                    .resolve(String.format("title-%02d", Integer.parseInt(title.getNumber())))
+                    .resolve("parts.csv");
+            if (Files.exists(parts)) {
+                try (Stream<String> lines = Files.lines(parts)) {
+                    partCounts.put(title.getNumber(), (int) lines.filter(l -> !l.isBlank()).count());
+                }
+            }
+        }
+    }
+
+    /** Register a title with the size and section index of its stored XML. */
+    private void addTitle(TitleDescriptor title) throws IOException {
+        titles.put(title.getNumber(), title);
+        Path xml = titleXmlPath(title.getNumber());
+        if (Files.exists(xml)) {
+            titleXmlBytes.put(title.getNumber(), Files.size(xml));
+            Path hierarchy = HierarchyExtractor.hierarchyPath(xml);
+            if (Files.exists(hierarchy)) {
+                Map<String, HierarchyExtractor.Node> sections = new HashMap<>();
+                for (HierarchyExtractor.Node node : HierarchyExtractor.read(hierarchy)) {
+                    if ("SECTION".equalsIgnoreCase(node.getType()) && node.getIdentifier() != null) {
+                        sections.putIfAbsent(TitleXmlSplitter.safeName(node.getIdentifier()), node);
+                    }
+                }
+                sectionsByTitle.put(title.getNumber(), sections);
+            }
+        }
+    }
+
+    private void loadAgencies() throws IOException {
+        Path csv = outputRoot.resolve("Agencies").resolve("agency.csv");
+        if (!Files.exists(csv)) return;
+        for (String line : Files.readAllLines(csv)) {
+            if (line.isBlank()) continue;
+            List<String> f = Utils.parseCsvLine(line);
+            addAgency(f.get(0), f.get(1), f.get(2), f.get(3), f.get(4), f.get(5));
+        }
+    }
+
+    /** Register an agency read from the CSV; its chapters are whatever is stored under its output directory. */
+    private void addAgency(String name, String shortName, String displayName, String sortableName, String slug,
+                           String sectionName) throws IOException {
+        AgencyDescriptor agency = newAgency(name, shortName, displayName, sortableName, slug, sectionName);
+        scanChapters(Utils.slugify(name), agency);
+    }
+
+    /** Register an agency from the snapshot: only the chapters it lists are looked for on disk. */
+    private void addAgency(AgencyDescriptor decoded) throws IOException {
+        AgencyDescriptor agency = newAgency(decoded.getName(), decoded.getShortName(), decoded.getDisplayName(),
+                                            decoded.getSortableName(), decoded.getSlug(), decoded.getSectionName());
+        String slug = Utils.slugify(decoded.getName());
+        List<ChapterEntry> entries = new ArrayList<>();
+        Set<Path> seen = new HashSet<>();
+        for (ChapterDescriptor chapter : decoded.getChapters()) {
+            TitleDescriptor title = titles.get(chapter.getTitleDescriptor().getNumber());
+            if (title == null) continue;
+            Path file = AgencyDownloader.agencyTitleDirectory(agency, title.getNumber())
+                    .resolve(AgencyDownloader.chapterFileName(chapter.getChapterName()));
+            if (!seen.add(file) || !Files.isRegularFile(file)) continue;
+            addChapter(entries, slug, agency, title, chapter.getChapterName().trim(), file);
+        }
+        chaptersByAgency.put(slug, entries);
+    }
+
+    private AgencyDescriptor newAgency(String name, String shortName, String displayName, String sortableName,
+                                       String slug, String sectionName) {
+        String dirSlug = Utils.slugify(name);
+        AgencyDescriptor agency = new AgencyDescriptor(name, shortName, displayName, sortableName, slug,
+                                                       outputRoot.resolve("Agencies").resolve(dirSlug));
+        agency.setSectionName(sectionName);
+        agencies.put(dirSlug, agency);
+        return agency;
+    }
+
+    private Path titleXmlPath(String titleNumber) {
+        return outputRoot.resolve("AllTitles").resolve("title-" + titleNumber).resolve("title-" + titleNumber + ".xml");
+    }
+
+    /** Locate {@code <slug>/Title-NN/chapter-*.xml} for one agency. */
+    private void scanChapters(String slug, AgencyDescriptor agency) throws IOException {
+        List<ChapterEntry> entries = new ArrayList<>();
+        for (TitleDescriptor title : titles.values()) {
+            Path titleDir = AgencyDownloader.agencyTitleDirectory(agency, title.getNumber());
+            if (!Files.isDirectory(titleDir)) continue;
+            try (Stream<Path> files = Files.list(titleDir)) {
+                List<Path> chapterFiles = new ArrayList<>();
+                files.filter(p -> p.getFileName().toString().matches("chapter-.*\\.xml")).forEach(chapterFiles::add);
+                Collections.sort(chapterFiles);
+                for (Path file : chapterFiles) {
+                    String fileName = file.getFileName().toString();
+                    String chapterName = fileName.substring("chapter-".length(), fileName.length() - ".xml".length());
+                    addChapter(entries, slug, agency, title, chapterName, file);
+                }
+            }
+        }
+        chaptersByAgency.put(slug, entries);
+    }
+
+    /** Size and word-count one stored chapter file and index it by agency and title. */
+    private void addChapter(List<ChapterEntry> entries, String slug, AgencyDescriptor agency, TitleDescriptor title,
+                            String chapterName, Path file) throws IOException {
+        if (!agency.getTitles().contains(title)) agency.addTitleDescriptor(title);
+        ChapterDescriptor chapter = new ChapterDescriptor(chapterName, title, agency);
+        agency.addAgencyChapter(chapter);
+        long size = Files.size(file);
+        ChapterEntry entry = new ChapterEntry(chapter, slug, file, size, wordCount(file, size));
+        entries.add(entry);
+        chaptersByTitle.computeIfAbsent(title.getNumber(), k -> new ArrayList<>()).add(entry);
+    }
+
+    /** Words in {@code file}, from {@code word-counts.csv} when the file is unchanged since. */
+    private long wordCount(Path file, long size) throws IOException {
+        long modified = Files.getLastModifiedTime(file).toMillis();
+        long[] known = wordCounts.get(file.toString());
+        if (known != null && known[0] == size && known[1] == modified) return known[2];
+        long words = Utf8Tokenizer.countWords(file);
+        wordCounts.put(file.toString(), new long[] { size, modified, words });
+        wordCountsChanged = true;
+        return words;
+    }
+
+    private Path wordCountsPath() {
+        return outputRoot.resolve("word-counts.csv");
+    }
+
+    private void readWordCounts() throws IOException {
+        Path csv = wordCountsPath();
+        if (!Files.exists(csv)) return;
+        for (String line : Files.readAllLines(csv)) {
+            if (line.isBlank()) continue;
+            List<String> f = Utils.parseCsvLine(line);
+            try {
+                wordCounts.put(f.get(0), new long[] { Long.parseLong(f.get(1)), Long.parseLong(f.get(2)), Long.parseLong(f.get(3)) });
+            } catch (RuntimeException e) {
+                // damaged row: that file is counted again
+            }
+        }
+    }
+
+    /** Write {@code "file","size","modified","words"} rows through a temporary file. */
+    private void writeWordCounts() {
+        Path csv = wordCountsPath();
+        try {
+            Files.createDirectories(csv.toAbsolutePath().getParent());
+            Path partial = Files.createTempFile(csv.toAbsolutePath().getParent(), "word-counts", ".csv.tmp");
+            try (PrintStream out = new PrintStream(partial.toFile(), StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, long[]> e : wordCounts.entrySet()) {
+                    long[] v = e.getValue();
+                    out.printf("\"%s\",\"%d\",\"%d\",\"%d\"\n", e.getKey().replace("\"", "\"\""), v[0], v[1], v[2]);
+                }
+            }
+            Files.move(partial, csv, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // A read-only output tree still serves; the counts are just taken again next time.
+            System.out.printf("\033[33mCould not save word counts to %s: %s\033[0m\n", csv, e.getMessage());
+        }
+    }
+
+    /* --------------------------------------------------------------- */
+    public Collection<TitleDescriptor> getTitles() { return titles.values(); }
+    public TitleDescriptor getTitle(String number) { return titles.get(number); }
+    public Collection<AgencyDescriptor> getAgencies() { return agencies.values(); }
+    public Set<String> getAgencySlugs() { return agencies.keySet(); }
+    public AgencyDescriptor getAgency(String slug) { return agencies.get(slug); }
+
+    public List<ChapterEntry> getChaptersForAgency(String slug) {
+        return chaptersByAgency.getOrDefault(slug, Collections.emptyList());
+    }
+
+    public List<ChapterEntry> getChaptersForTitle(String number) {
+        return chaptersByTitle.getOrDefault(number, Collections.emptyList());
+    }
+
+    public ChapterEntry getChapter(String slug, String titleNumber, String chapterName) {
+        for (ChapterEntry entry : getChaptersForAgency(slug)) {
+            if (entry.getTitleNumber().equals(titleNumber) && entry.getChapterName().equals(chapterName)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    public int getPartCount(String titleNumber) { return partCounts.getOrDefault(titleNumber, 0); }
+    public long getTitleXmlBytes(String titleNumber) { return titleXmlBytes.getOrDefault(titleNumber, 0L); }
+    public int getSectionCount(String titleNumber) { return sectionsByTitle.getOrDefault(titleNumber, Collections.emptyMap()).size(); }
+
+    /** Row of a section ("301.1" or "§ 301.1") in the title's hierarchy, or {@code null}. */
+    public HierarchyExtractor.Node getSection(String titleNumber, String section) {
+        return sectionsByTitle.getOrDefault(titleNumber, Collections.emptyMap()).get(TitleXmlSplitter.safeName(section));
+    }
+
+    public Path getTitleXml(String titleNumber) {
+        return titleXmlPath(titleNumber);
+    }
+
+    public long getAgencyBytes(String slug) {
+        return getChaptersForAgency(slug).stream().mapToLong(ChapterEntry::getBytes).sum();
+    }
+
+    public long getAgencyWords(String slug) {
+        return getChaptersForAgency(slug).stream().mapToLong(ChapterEntry::getWords).sum();
+    }
+
+    public long getTitleWords(String titleNumber) {
+        return getChaptersForTitle(titleNumber).stream().mapToLong(ChapterEntry::getWords).sum();
+    }
+}
@@ -0,0 +1,323 @@
+package org.jaa.takehome.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.jaa.takehome.cache.ContentCache;
+import org.jaa.takehome.descriptor.AgencyDescriptor;
+import org.jaa.takehome.descriptor.TitleDescriptor;
+import org.jaa.takehome.xml.HierarchyExtractor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Embedded read-only HTTP service over a completed sync.
+ *
+ * <p>End-points (all {@code GET}):
+ * <ul>
+ *   <li>{@code /api/metrics} – corpus totals</li>
+ *   <li>{@code /api/titles}, {@code /api/titles/{number}}</li>
+ *   <li>{@code /api/agencies}, {@code /api/agencies/{slug}}</li>
+ *   <li>{@code /api/agencies/{slug}/titles/{number}/chapters/{chapter}} – chapter metadata</li>
+ *   <li>{@code /api/agencies/{slug}/titles/{number}/chapters/{chapter}/xml} – the stored chapter XML</li>
+ *   <li>{@code /api/titles/{number}/sections/{section}/xml} – one section, read at its offset in the title XML</li>
+ *   <li>{@code /api/cache} – live statistics of the shared {@link ContentCache}</li>
+ * </ul>
+ * Every JSON body is rendered once at start-up from the {@link MetricsRepository}, so a
+ * metadata request is a map lookup and a single write.  Chapter and section XML is served from
+ * the shared {@link ContentCache}, so repeated reads come from memory; content too large for
+ * the cache is streamed from disk instead.  The JDK server only hands out an
+ * {@code OutputStream}, so that is a buffered copy in chunks, not a zero-copy send.
+ *
+ * <p>Requests run one per thread: virtual threads when the runtime offers them (JDK 21+),
+ * otherwise a cached platform-thread pool.
+ */
+public class QueryService {
+
+    private static final String API_PREFIX = "/api/";
+    private static final int BACKLOG = 1024;
+
+    private final MetricsRepository repository;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Map<String, byte[]> responses = new HashMap<>();
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public QueryService(MetricsRepository repository) {
+        this.repository = repository;
+    }
+
+    /* --------------------------------------------------------------- */
+    /** Render the JSON bodies and start listening on {@code port}. */
+    public void start(int port) throws IOException {
+        precompute();
+        server = HttpServer.create(new InetSocketAddress(port), BACKLOG);
+        executor = newRequestExecutor();
+        server.setExecutor(executor);
+        server.createContext(API_PREFIX, this::handle);
+        server.start();
+        System.out.printf("Query service listening on \033[32mhttp://localhost:%d%s\033[0m (%d precomputed responses)\n",
+                          server.getAddress().getPort(), API_PREFIX, responses.size());
+    }
+
+    public void stop() {
+        if (server != null) server.stop(0);
+        if (executor != null) executor.shutdownNow();
+    }
+
+    /* --------------------------------------------------------------- */
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendError(exchange, 405, "Only GET is supported");
+                return;
+            }
+            String path = exchange.getRequestURI().getRawPath();
+            if (path.endsWith("/") && path.length() > API_PREFIX.length()) {
+                path = path.substring(0, path.length() - 1);
+            }
+            byte[] body = responses.get(path);
+            if (body != null) {
+                sendJson(exchange, body);
+                return;
+            }
+            if (path.equals(API_PREFIX + "cache")) {
+                sendJson(exchange, mapper.writeValueAsBytes(ContentCache.shared().stats()));
+                return;
+            }
+            // /api/agencies/{slug}/titles/{number}/chapters/{chapter}/xml
+            String[] segments = path.substring(API_PREFIX.length()).split("/");
+            if (segments.length == 7 && "agencies".equals(segments[0]) && "titles".equals(segments[2])
+                    && "chapters".equals(segments[4]) && "xml".equals(segments[6])) {
+                MetricsRepository.ChapterEntry entry = repository.getChapter(decode(segments[1]), decode(segments[3]), decode(segments[5]));
+                if (entry != null) {
+                    sendXml(exchange, entry.getFile(), 0, -1);
+                    return;
+                }
+            }
+            // /api/titles/{number}/sections/{section}/xml
+            if (segments.length == 5 && "titles".equals(segments[0]) && "sections".equals(segments[2])
+                    && "xml".equals(segments[4])) {
+                String number = decode(segments[1]);
+                HierarchyExtractor.Node section = repository.getSection(number, decode(segments[3]));
+                if (section != null) {
+                    sendXml(exchange, repository.getTitleXml(number), section.getStart(), section.getLength());
+                    return;
+                }
+            }
+            sendError(exchange, 404, "No such resource: " + path);
+        } catch (IOException e) {
+            // Headers are out (file errors before that become 404/500 in sendXml), so the client
+            // went away or the file shrank mid-response; nothing more to do for this exchange.
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void sendJson(HttpExchange exchange, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Send stored XML: through the shared {@link ContentCache} when it fits, so repeated reads
+     * come from memory, otherwise streamed from the file.  A {@code length} of {@code -1} sends
+     * the whole file as it is now, not as it was when the service started.  A file that has
+     * gone (or cannot be read) since the repository was loaded is answered with 404 (or 500)
+     * before any header is out.
+     */
+    private void sendXml(HttpExchange exchange, Path file, long offset, long length) throws IOException {
+        ByteBuffer content = null;
+        FileChannel channel = null;
+        try {
+            if (ContentCache.shared().isCacheable(length < 0 ? Files.size(file) : length)) {
+                content = ContentCache.shared().get(file, offset, length);
+            } else {
+                channel = FileChannel.open(file, StandardOpenOption.READ);
+            }
+        } catch (NoSuchFileException e) {
+            sendError(exchange, 404, "Stored XML no longer on disk: " + file.getFileName());
+            return;
+        } catch (IOException e) {
+            sendError(exchange, 500, "Cannot read stored XML " + file.getFileName() + ": " + e.getMessage());
+            return;
+        }
+        if (channel != null) {
+            try (FileChannel open = channel) {
+                sendFile(exchange, open, file, offset, length);
+            }
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(200, content.remaining());
+        try (OutputStream out = exchange.getResponseBody();
+             WritableByteChannel target = Channels.newChannel(out)) {
+            while (content.hasRemaining()) target.write(content);
+        }
+    }
+
+    /** Stream {@code length} bytes of an open stored file, from {@code offset}, from the file channel to the response. */
+    private void sendFile(HttpExchange exchange, FileChannel channel, Path file, long offset, long length) throws IOException {
+        long start = Math.min(Math.max(0, offset), channel.size());
+        long size = length < 0 ? channel.size() - start : Math.min(length, channel.size() - start);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(200, size);
+        try (OutputStream out = exchange.getResponseBody();
+             WritableByteChannel target = Channels.newChannel(out)) {
+            long position = 0;
+            while (position < size) {
+                long sent = channel.transferTo(start + position, size - position, target);
+                // The file shrank under us: fail the response rather than spin on a short body.
+                if (sent <= 0) throw new IOException(file + " ended after " + position + " of " + size + " bytes");
+                position += sent;
+            }
+        }
+    }
+
+    private void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("status", status);
+        error.put("error", message);
+        byte[] body = mapper.writeValueAsBytes(error);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /* --------------------------------------------------------------- */
+    /*   Response rendering (done once, at start-up)                   */
+    /* --------------------------------------------------------------- */
+    private void precompute() throws IOException {
+        List<Map<String, Object>> titleList = new ArrayList<>();
+        long corpusBytes = 0;
+        long corpusWords = 0;
+        int chapterCount = 0;
+        for (TitleDescriptor title : repository.getTitles()) {
+            Map<String, Object> summary = titleSummary(title);
+            titleList.add(summary);
+            Map<String, Object> detail = new LinkedHashMap<>(summary);
+            List<Map<String, Object>> chapters = new ArrayList<>();
+            for (MetricsRepository.ChapterEntry entry : repository.getChaptersForTitle(title.getNumber())) {
+                chapters.add(chapterSummary(entry));
+            }
+            detail.put("chapters", chapters);
+            put("titles/" + encode(title.getNumber()), detail);
+        }
+        put("titles", titleList);
+
+        List<Map<String, Object>> agencyList = new ArrayList<>();
+        for (String slug : repository.getAgencySlugs()) {
+            AgencyDescriptor agency = repository.getAgency(slug);
+            Map<String, Object> summary = agencySummary(slug, agency);
+            agencyList.add(summary);
+            Map<String, Object> detail = new LinkedHashMap<>(summary);
+            List<Map<String, Object>> chapters = new ArrayList<>();
+            for (MetricsRepository.ChapterEntry entry : repository.getChaptersForAgency(slug)) {
+                Map<String, Object> chapter = chapterSummary(entry);
+                chapters.add(chapter);
+                put(chapterPath(entry), chapter);
+                corpusBytes += entry.getBytes();
+                corpusWords += entry.getWords();
+                chapterCount++;
+            }
+            detail.put("chapters", chapters);
+            put("agencies/" + encode(slug), detail);
+        }
+        put("agencies", agencyList);
+
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("titles", titleList.size());
+        metrics.put("agencies", agencyList.size());
+        metrics.put("chapters", chapterCount);
+        metrics.put("chapterBytes", corpusBytes);
+        metrics.put("chapterWords", corpusWords);
+        put("metrics", metrics);
+    }
+
+    private Map<String, Object> titleSummary(TitleDescriptor title) {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("number", title.getNumber());
+        m.put("name", title.getName());
+        m.put("latestAmendedOn", title.getLatestAmendedOn());
+        m.put("latestIssueDate", title.getLatestIssueDate());
+        m.put("upToDateAsOf", title.getUpToDateAsOf());
+        m.put("partCount", repository.getPartCount(title.getNumber()));
+        m.put("sectionCount", repository.getSectionCount(title.getNumber()));
+        m.put("chapterCount", repository.getChaptersForTitle(title.getNumber()).size());
+        m.put("xmlBytes", repository.getTitleXmlBytes(title.getNumber()));
+        m.put("agencyChapterWords", repository.getTitleWords(title.getNumber()));
+        return m;
+    }
+
+    private Map<String, Object> agencySummary(String slug, AgencyDescriptor agency) {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("slug", slug);
+        m.put("name", agency.getName());
+        m.put("shortName", agency.getShortName());
+        m.put("displayName", agency.getDisplayName());
+        m.put("sortableName", agency.getSortableName());
+        m.put("titleCount", agency.getTitleCount());
+        m.put("chapterCount", agency.getChapterCount());
+        m.put("chapterBytes", repository.getAgencyBytes(slug));
+        m.put("wordCount", repository.getAgencyWords(slug));
+        return m;
+    }
+
+    private Map<String, Object> chapterSummary(MetricsRepository.ChapterEntry entry) {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("agency", entry.getAgencySlug());
+        m.put("title", entry.getTitleNumber());
+        m.put("chapter", entry.getChapterName());
+        m.put("bytes", entry.getBytes());
+        m.put("wordCount", entry.getWords());
+        m.put("xml", API_PREFIX + chapterPath(entry) + "/xml");
+        return m;
+    }
+
+    private static String chapterPath(MetricsRepository.ChapterEntry entry) {
+        return "agencies/" + encode(entry.getAgencySlug())
+                + "/titles/" + encode(entry.getTitleNumber())
+                + "/chapters/" + encode(entry.getChapterName());
+    }
+
+    private void put(String relativePath, Object value) throws IOException {
+        responses.put(API_PREFIX + relativePath, mapper.writeValueAsBytes(value));
+    }
+
+    private static String encode(String s) {
+        return java.net.URLEncoder.encode(s, StandardCharsets.UTF_8).replace("+", "%20");
+    }
+
+    private static String decode(String s) {
+        return URLDecoder.decode(s, StandardCharsets.UTF_8);
+    }
+
+    /** One virtual thread per request where available, platform threads otherwise. */
+    private static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package org.jaa.takehome.shard;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Work leases kept as files in a directory shared by several crawler processes (or hosts on a
+ * shared filesystem).
+ *
+ * <p>For a unit of work {@code u} (e.g. {@code title-40}):
+ * <ul>
+ *   <li>{@code u.lease} exists while a worker owns {@code u}; it holds the worker id and is
+ *       created with {@code CREATE_NEW}, so exactly one worker can create it;</li>
+ *   <li>its modification time is the heartbeat, renewed every third of the TTL by a daemon
+ *       thread for every lease this worker holds;</li>
+ *   <li>a lease whose heartbeat is older than the TTL belongs to a dead (or stuck) worker and
+ *       is taken over: it is first renamed away, and the renamed file is then checked to be the
+ *       same stale lease (owner and heartbeat) that was judged expired.  When a faster
+ *       contender already replaced it with a fresh lease, that fresh lease is linked back into
+ *       place and the takeover is abandoned;</li>
+ *   <li>{@code u.done} is written (atomically) when {@code u} is finished and carries that
+ *       unit's manifest row; done units are never leased again.</li>
+ * </ul>
+ * A worker that was only paused and finds its lease taken over notices it at the next
+ * heartbeat and stops renewing, but it does not abort the unit it is running, so that unit can
+ * be synced by two workers at once.  The title XML is renamed into place whole, but chapter
+ * files are rewritten in place and can interleave, so the TTL must stay well above the longest
+ * pause a live worker can take.
+ */
+public class LeaseDirectory implements Closeable {
+
+    private static final String LEASE = ".lease";
+    private static final String DONE = ".done";
+
+    private final Path directory;
+    private final String workerId;
+    private final long ttlMs;
+    private final Set<String> held = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService heartbeat;
+
+    public LeaseDirectory(Path directory, String workerId, long ttlMs) throws IOException {
+        this.directory = directory;
+        this.workerId = workerId;
+        this.ttlMs = ttlMs;
+        Files.createDirectories(directory);
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lease-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1, ttlMs / 3);
+        heartbeat.scheduleAtFixedRate(this::renewAll, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /** {@code pid@host}, unique enough among workers sharing a directory. */
+    public static String defaultWorkerId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            host = "localhost";
+        }
+        return ProcessHandle.current().pid() + "@" + host;
+    }
+
+    public String getWorkerId() { return workerId; }
+
+    /* --------------------------------------------------------------- */
+    public boolean isDone(String unit) {
+        return Files.exists(directory.resolve(unit + DONE));
+    }
+
+    /**
+     * Try to take {@code unit}.
+     *
+     * @return {@code true} when this worker now owns it; {@code false} when it is done or
+     *         leased by a live worker
+     */
+    public boolean tryAcquire(String unit) throws IOException {
+        if (isDone(unit)) return false;
+        Path lease = directory.resolve(unit + LEASE);
+        if (!create(lease)) {
+            if (!takeOverIfExpired(unit, lease) || !create(lease)) return false;
+        }
+        held.add(unit);
+        if (isDone(unit)) {
+            // Finished by someone else between the first check and the create.
+            release(unit);
+            return false;
+        }
+        return true;
+    }
+
+    /** Mark {@code unit} finished with its manifest row and drop the lease. */
+    public void complete(String unit, String manifestRow) throws IOException {
+        writeAtomically(directory.resolve(unit + DONE), manifestRow);
+        release(unit);
+    }
+
+    /** Give {@code unit} back (e.g. after a failure) so another worker can pick it up at once. */
+    public void release(String unit) throws IOException {
+        held.remove(unit);
+        Path lease = directory.resolve(unit + LEASE);
+        if (ownedByMe(lease)) Files.deleteIfExists(lease);
+    }
+
+    /**
+     * When every unit is done, write their manifest rows, in the given order, to
+     * {@code manifest}.  Every worker that finishes may do this; the content is the same.
+     *
+     * @return {@code false} when some unit is still outstanding
+     */
+    public boolean mergeManifest(Collection<String> units, Path manifest) throws IOException {
+        StringBuilder rows = new StringBuilder();
+        for (String unit : units) {
+            Path done = directory.resolve(unit + DONE);
+            if (!Files.exists(done)) return false;
+            rows.append(Files.readString(done, StandardCharsets.UTF_8));
+        }
+        writeAtomically(manifest, rows.toString());
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        heartbeat.shutdownNow();
+        for (String unit : held.toArray(new String[0])) release(unit);
+    }
+
+    /* --------------------------------------------------------------- */
+    private boolean create(Path lease) throws IOException {
+        try {
+            Files.write(lease, workerId.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        }
+    }
+
+    private boolean takeOverIfExpired(String unit, Path lease) throws IOException {
+        FileTime heartbeat;
+        String previousOwner;
+        try {
+            heartbeat = Files.getLastModifiedTime(lease);
+            previousOwner = Files.readString(lease, StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return true;    // released in the meantime
+        }
+        long age = System.currentTimeMillis() - heartbeat.toMillis();
+        if (age <= ttlMs) return false;
+        Path stale = directory.resolve(unit + LEASE + ".stale-" + workerId.replaceAll("[^0-9A-Za-z.\\-]", "_"));
+        try {
+            Files.move(lease, stale, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            return false;   // another worker took it over first
+        }
+        // Between the read and the rename another contender may have taken the stale lease over
+        // and created its own; then what was renamed is that fresh lease, which must go back.
+        if (!heartbeat.equals(Files.getLastModifiedTime(stale))
+                || !previousOwner.equals(Files.readString(stale, StandardCharsets.UTF_8))) {
+            try {
+                Files.createLink(lease, stale);     // fails if a third worker created one meanwhile
+            } catch (FileAlreadyExistsException | UnsupportedOperationException e) {
+                // That owner notices the loss at its next heartbeat.
+            } finally {
+                Files.deleteIfExists(stale);
+            }
+            return false;
+        }
+        Files.deleteIfExists(stale);
+        System.out.printf("\033[33mTaking over %s from %s (no heartbeat for %,d ms)\033[0m\n", unit, previousOwner, age);
+        return true;
+    }
+
+    private boolean ownedByMe(Path lease) throws IOException {
+        try {
+            return workerId.equals(Files.readString(lease, StandardCharsets.UTF_8));
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    private void renewAll() {
+        FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+        for (String unit : held) {
+            Path lease = directory.resolve(unit + LEASE);
+            try {
+                // Check again after the touch: the lease may have been taken over in between, and
+                // then the touch renewed the new owner's lease, not ours.
+                boolean mine = ownedByMe(lease);
+                if (mine) {
+                    Files.setLastModifiedTime(lease, now);
+                    mine = ownedByMe(lease);
+                }
+                if (!mine) {
+                    held.remove(unit);
+                    System.out.printf("\033[31mLease on %s was taken over by another worker\033[0m\n", unit);
+                }
+            } catch (NoSuchFileException e) {
+                held.remove(unit);
+                System.out.printf("\033[31mLease on %s was taken over by another worker\033[0m\n", unit);
+            } catch (IOException e) {
+                System.out.printf("\033[31mCould not renew lease on %s: %s\033[0m\n", unit, e.getMessage());
+            }
+        }
+    }
+
+    private static void writeAtomically(Path target, String content) throws IOException {
+        Path tmp = Files.createTempFile(target.toAbsolutePath().getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            Files.writeString(tmp, content, StandardCharsets.UTF_8);
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package org.jaa.takehome.snapshot;
+
+import org.jaa.takehome.descriptor.AgencyDescriptor;
+import org.jaa.takehome.descriptor.ChapterDescriptor;
+import org.jaa.takehome.descriptor.PartDescriptor;
+import org.jaa.takehome.descriptor.TitleDescriptor;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import static org.jaa.takehome.Constants.OUTPUT_ROOT;
+
+/**
+ * Compact binary snapshot of the resolved descriptor graph (titles with their parts,
+ * agencies with their titles and chapters), written at the end of a full sync so analytics
+ * and the query service can start without calling the API or re-reading the CSV files.
+ *
+ * <p>Layout (big-endian):
+ * <pre>
+ *   magic "ECFRSNAP", int version
+ *   int stringCount, stringCount × (int byteLength, UTF-8 bytes)   – every distinct string once
+ *   int titleCount,  titleCount × title
+ *       title   = 5 × string (number, name, latestAmendedOn, latestIssueDate, upToDateAsOf),
+ *                 byte reserved, int partCount, partCount × part
+ *       part    = 7 × string (type, partNumber, identifier, name, amendedDate, issueDate, agency),
+ *                 byte flags (1 substantive, 2 removed, 4 subPart)
+ *   int agencyCount, agencyCount × agency
+ *       agency  = 7 × string (name, shortName, displayName, sortableName, slug, sectionName, outputPath),
+ *                 int titleCount × int title index,
+ *                 int chapterCount × (string chapterName, int title index, long size)
+ * </pre>
+ * A string is stored as its index in the string table ({@code -1} for {@code null}); titles
+ * are referenced by their position, so the shared {@link TitleDescriptor} instances come back
+ * as shared instances.  The loader maps the file read-only and decodes it in one pass; a count,
+ * length or index that does not fit the file is reported as a corrupt snapshot.
+ */
+public final class DescriptorSnapshot {
+
+    public static final Path DEFAULT_PATH = OUTPUT_ROOT.resolve("descriptors.snap");
+
+    private static final byte[] MAGIC = "ECFRSNAP".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 2;
+
+    /** The graph read back from a snapshot. */
+    public static class Graph {
+        private final List<TitleDescriptor> titles;
+        private final List<AgencyDescriptor> agencies;
+
+        Graph(List<TitleDescriptor> titles, List<AgencyDescriptor> agencies) {
+            this.titles = titles;
+            this.agencies = agencies;
+        }
+
+        public List<TitleDescriptor> getTitles() { return titles; }
+        public List<AgencyDescriptor> getAgencies() { return agencies; }
+    }
+
+    private DescriptorSnapshot() {
+    }
+
+    /* --------------------------------------------------------------- */
+    /** Write the graph to {@code file} (through a temporary file, so readers never see half a snapshot). */
+    public static void save(List<TitleDescriptor> titles, List<AgencyDescriptor> agencies, Path file) throws IOException {
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        Map<TitleDescriptor, Integer> titleIndex = new IdentityHashMap<>();
+        for (TitleDescriptor title : titles) {
+            titleIndex.put(title, titleIndex.size());
+            intern(strings, title.getNumber(), title.getName(), title.getLatestAmendedOn(),
+                   title.getLatestIssueDate(), title.getUpToDateAsOf());
+            for (PartDescriptor part : title.getParts()) {
+                intern(strings, part.getType(), part.getPartNumber(), part.getIdentifier(), part.getName(),
+                       part.getAmendedDate(), part.getIssueDate(), part.getAgency());
+            }
+        }
+        for (AgencyDescriptor agency : agencies) {
+            intern(strings, agency.getName(), agency.getShortName(), agency.getDisplayName(), agency.getSortableName(),
+                   agency.getSlug(), agency.getSectionName(), pathString(agency.getAgencyOutputPath()));
+            for (ChapterDescriptor chapter : agency.getChapters()) intern(strings, chapter.getChapterName());
+        }
+
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path partial = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(partial), 1 << 16))) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(strings.size());
+            for (String s : strings.keySet()) {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            out.writeInt(titles.size());
+            for (TitleDescriptor title : titles) {
+                writeStrings(out, strings, title.getNumber(), title.getName(), title.getLatestAmendedOn(),
+                             title.getLatestIssueDate(), title.getUpToDateAsOf());
+                out.writeByte(title.isReserved() ? 1 : 0);
+                out.writeInt(title.getParts().size());
+                for (PartDescriptor part : title.getParts()) {
+                    writeStrings(out, strings, part.getType(), part.getPartNumber(), part.getIdentifier(), part.getName(),
+                                 part.getAmendedDate(), part.getIssueDate(), part.getAgency());
+                    out.writeByte((part.isSubstantive() ? 1 : 0) | (part.isRemoved() ? 2 : 0) | (part.isSubPart() ? 4 : 0));
+                }
+            }
+            out.writeInt(agencies.size());
+            for (AgencyDescriptor agency : agencies) {
+                writeStrings(out, strings, agency.getName(), agency.getShortName(), agency.getDisplayName(),
+                             agency.getSortableName(), agency.getSlug(), agency.getSectionName(),
+                             pathString(agency.getAgencyOutputPath()));
+                List<Integer> agencyTitles = new ArrayList<>();
+                for (TitleDescriptor title : agency.getTitles()) {
+                    Integer index = titleIndex.get(title);
+                    if (index != null) agencyTitles.add(index);
+                }
+                out.writeInt(agencyTitles.size());
+                for (int index : agencyTitles) out.writeInt(index);
+                List<ChapterDescriptor> chapters = new ArrayList<>();
+                for (ChapterDescriptor chapter : agency.getChapters()) {
+                    if (titleIndex.containsKey(chapter.getTitleDescriptor())) chapters.add(chapter);
+                }
+                out.writeInt(chapters.size());
+                for (ChapterDescriptor chapter : chapters) {
+                    writeStrings(out, strings, chapter.getChapterName());
+                    out.writeInt(titleIndex.get(chapter.getTitleDescriptor()));
+                    out.writeLong(chapter.getSize());
+                }
+            }
+        }
+        Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.out.printf("Saved descriptor snapshot (%d titles, %d agencies, %,d bytes) to %s\n",
+                          titles.size(), agencies.size(), Files.size(file), file);
+    }
+
+    /** Map {@code file} and rebuild the graph it holds. */
+    public static Graph load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try {
+                return read(buf, file);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Truncated descriptor snapshot " + file, e);
+            }
+        }
+    }
+
+    /* --------------------------------------------------------------- */
+    private static Graph read(ByteBuffer buf, Path file) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        buf.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) throw new IOException("Not a descriptor snapshot: " + file);
+        int version = buf.getInt();
+        if (version != VERSION) throw new IOException("Unsupported descriptor snapshot version " + version + ": " + file);
+
+        String[] strings = new String[count(buf, 4, file)];
+        for (int i = 0; i < strings.length; i++) {
+            byte[] bytes = new byte[count(buf, 1, file)];
+            buf.get(bytes);
+            strings[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        int titleCount = count(buf, 5 * 4 + 1 + 4, file);
+        List<TitleDescriptor> titles = new ArrayList<>(titleCount);
+        for (int t = 0; t < titleCount; t++) {
+            TitleDescriptor title = new TitleDescriptor(string(buf, strings, file), string(buf, strings, file),
+                                                        string(buf, strings, file), string(buf, strings, file),
+                                                        string(buf, strings, file), buf.get() != 0);
+            int partCount = count(buf, 7 * 4 + 1, file);
+            List<PartDescriptor> parts = new ArrayList<>(partCount);
+            for (int p = 0; p < partCount; p++) {
+                String type = string(buf, strings, file);
+                String partNumber = string(buf, strings, file);
+                String identifier = string(buf, strings, file);
+                String name = string(buf, strings, file);
+                String amendedDate = string(buf, strings, file);
+                String issueDate = string(buf, strings, file);
+                String agency = string(buf, strings, file);
+                int flags = buf.get();
+                parts.add(new PartDescriptor(type, partNumber, title, name, identifier, amendedDate, issueDate,
+                                             (flags & 1) != 0, (flags & 2) != 0, (flags & 4) != 0, agency));
+            }
+            title.setParts(parts);
+            titles.add(title);
+        }
+
+        int agencyCount = count(buf, 7 * 4 + 4 + 4, file);
+        List<AgencyDescriptor> agencies = new ArrayList<>(agencyCount);
+        for (int a = 0; a < agencyCount; a++) {
+            String name = string(buf, strings, file);
+            String shortName = string(buf, strings, file);
+            String displayName = string(buf, strings, file);
+            String sortableName = string(buf, strings, file);
+            String slug = string(buf, strings, file);
+            String sectionName = string(buf, strings, file);
+            String outputPath = string(buf, strings, file);
+            AgencyDescriptor agency = new AgencyDescriptor(name, shortName, displayName, sortableName, slug,
+                                                           outputPath == null ? null : Paths.get(outputPath));
+            agency.setSectionName(sectionName);
+            int agencyTitles = count(buf, 4, file);
+            for (int i = 0; i < agencyTitles; i++) agency.addTitleDescriptor(title(buf, titles, file));
+            int chapters = count(buf, 4 + 4 + 8, file);
+            for (int i = 0; i < chapters; i++) {
+                String chapterName = string(buf, strings, file);
+                ChapterDescriptor chapter = new ChapterDescriptor(chapterName, title(buf, titles, file), agency);
+                chapter.setSize(buf.getLong());
+                agency.addAgencyChapter(chapter);
+            }
+            agencies.add(agency);
+        }
+        return new Graph(titles, agencies);
+    }
+
+    private static void intern(Map<String, Integer> strings, String... values) {
+        for (String value : values) {
+            if (value != null) strings.putIfAbsent(value, strings.size());
+        }
+    }
+
+    private static void writeStrings(DataOutputStream out, Map<String, Integer> strings, String... values) throws IOException {
+        for (String value : values) out.writeInt(value == null ? -1 : strings.get(value));
+    }
+
+    /** Read a count of items taking at least {@code minBytes} each, checked against what is left of the file. */
+    private static int count(ByteBuffer buf, int minBytes, Path file) throws IOException {
+        int count = buf.getInt();
+        if (count < 0 || (long) count * minBytes > buf.remaining()) {
+            throw new IOException("Corrupt descriptor snapshot " + file + ": count " + count + " at offset "
+                                  + (buf.position() - 4) + " does not fit the " + buf.remaining() + " bytes left");
+        }
+        return count;
+    }
+
+    private static String string(ByteBuffer buf, String[] strings, Path file) throws IOException {
+        int index = buf.getInt();
+        if (index < -1 || index >= strings.length) {
+            throw new IOException("Corrupt descriptor snapshot " + file + ": string index " + index + " out of range");
+        }
+        return index < 0 ? null : strings[index];
+    }
+
+    private static TitleDescriptor title(ByteBuffer buf, List<TitleDescriptor> titles, Path file) throws IOException {
+        int index = buf.getInt();
+        if (index < 0 || index >= titles.size()) {
+            throw new IOException("Corrupt descriptor snapshot " + file + ": title index " + index + " out of range");
+        }
+        return titles.get(index);
+    }
+
+    private static String pathString(Path path) {
+        return path == null ? null : path.toString();
+    }
+}
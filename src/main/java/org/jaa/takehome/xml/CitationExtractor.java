@@ -0,0 +1,144 @@
+package org.jaa.takehome.xml;
+
+import org.jaa.takehome.analytics.CitationGraph;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Streaming extraction of CFR citations from stored chapter (or title) XML into a
+ * {@link CitationGraph.Builder}.
+ *
+ * <p>The document is read with a StAX cursor.  The text of each {@code DIV8} section is
+ * collected until the section closes, scanned for citations and dropped; text of a part that
+ * lies outside its sections (mostly the authority and source notes) is credited to the part.
+ * Recognized forms:
+ * <ul>
+ *   <li>{@code 40 CFR 52.21}, {@code 40 CFR part 52}, {@code 40 CFR § 52.21} – explicit title</li>
+ *   <li>{@code part 1234 of this title} / {@code of this chapter} – a part of the same title</li>
+ *   <li>{@code § 52.21}, {@code section 52.21} – a section of the same title</li>
+ * </ul>
+ * Only the first member of a list ("parts 51 and 52", "§§ 60.1 through 60.4") is picked up.
+ */
+public class CitationExtractor {
+
+    private static final String SECTION = "(\\d+[A-Za-z]?)\\.(\\d+[A-Za-z]*(?:-\\d+[A-Za-z]*)?)";
+    private static final Pattern CITATION = Pattern.compile(
+            "\\b(\\d+)\\s*C\\.?F\\.?R\\.?\\s+(?:[Pp]arts?\\s+|§§?\\s*)?(\\d+[A-Za-z]?)(?:\\.(\\d+[A-Za-z]*(?:-\\d+[A-Za-z]*)?))?"
+            + "|\\b[Pp]arts?\\s+(\\d+[A-Za-z]?)\\s+of\\s+this\\s+(?:title|chapter)\\b"
+            + "|(?:§§?\\s*|\\b[Ss]ections?\\s+)" + SECTION);
+
+    private final StringBuilder text = new StringBuilder(1 << 14);
+    private final Matcher matcher = CITATION.matcher("");
+    private long citations;
+
+    /** Citations found so far, over every document passed to this extractor. */
+    public long getCitations() { return citations; }
+
+    /* --------------------------------------------------------------- */
+    /**
+     * Add the citations in {@code xml}, a document of title {@code title} stored for
+     * {@code agency} (a {@link CitationGraph.Builder#agency} index), to {@code graph}.
+     */
+    public void extract(Path xml, String title, int agency, CitationGraph.Builder graph) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(xml), 1 << 16)) {
+            XMLStreamReader reader = TitleXmlSplitter.newInputFactory().createXMLStreamReader(in);
+            try {
+                extract(reader, title, agency, graph);
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Cannot read " + xml + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void extract(XMLStreamReader reader, String title, int agency, CitationGraph.Builder graph)
+            throws XMLStreamException {
+        String part = null;
+        int partNode = -1;
+        int source = -1;
+        text.setLength(0);
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    String name = reader.getLocalName();
+                    String type = reader.getAttributeValue(null, "TYPE");
+                    if ("DIV5".equals(name) && "PART".equalsIgnoreCase(type)) {
+                        flush(source, title, graph);
+                        part = identifier(reader.getAttributeValue(null, "N"));
+                        partNode = part == null ? -1 : graph.part(title, part);
+                        if (partNode >= 0) graph.own(partNode, agency);
+                        source = partNode;
+                    } else if ("DIV8".equals(name) && "SECTION".equalsIgnoreCase(type) && part != null) {
+                        String section = identifier(reader.getAttributeValue(null, "N"));
+                        if (section != null && section.indexOf('.') > 0) {
+                            flush(source, title, graph);
+                            source = graph.section(title, part, section);
+                            graph.own(source, agency);
+                        }
+                    }
+                    text.append(' ');
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                    if (source >= 0) text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    String end = reader.getLocalName();
+                    if ("DIV8".equals(end) && source != partNode) {
+                        flush(source, title, graph);
+                        source = partNode;
+                    } else if ("DIV5".equals(end) && partNode >= 0) {
+                        flush(source, title, graph);
+                        part = null;
+                        partNode = -1;
+                        source = -1;
+                    }
+                    text.append(' ');
+                    break;
+                default:
+                    break;
+            }
+        }
+        flush(source, title, graph);
+    }
+
+    /** Scan the collected text, credit its citations to {@code source} and start over. */
+    private void flush(int source, String title, CitationGraph.Builder graph) {
+        if (source >= 0 && text.length() > 0) {
+            matcher.reset(text);
+            while (matcher.find()) {
+                int target;
+                if (matcher.group(1) != null) {
+                    String part = matcher.group(2);
+                    target = matcher.group(3) == null
+                            ? graph.part(matcher.group(1), part)
+                            : graph.section(matcher.group(1), part, part + "." + matcher.group(3));
+                } else if (matcher.group(4) != null) {
+                    target = graph.part(title, matcher.group(4));
+                } else {
+                    target = graph.section(title, matcher.group(5), matcher.group(5) + "." + matcher.group(6));
+                }
+                graph.cite(source, target);
+                citations++;
+            }
+        }
+        text.setLength(0);
+    }
+
+    /** "§ 52.21" → "52.21"; {@code null} for a missing identifier. */
+    private static String identifier(String n) {
+        if (n == null) return null;
+        String trimmed = n.replace("§", "").trim();
+        return trimmed.isEmpty() ? null : trimmed;
+    }
+}
@@ -0,0 +1,346 @@
+package org.jaa.takehome.xml;
+
+import org.jaa.takehome.utilities.Utils;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static org.jaa.takehome.Constants.currentWorkingDirectoryPath;
+
+/**
+ * Single-pass extraction of the structural hierarchy of a stored title XML document.
+ *
+ * <p>Every {@code DIVn} element (title, chapter, subchapter, part, subpart, subject group,
+ * section, appendix) becomes one {@link Node} row with its type, identifier ({@code N}),
+ * heading, nesting level, parent row and the byte range {@code [start, end)} it occupies in
+ * the file.  The rows are written to {@code hierarchy.csv} next to the title XML, so any
+ * section can later be served by reading that byte range instead of parsing the title again.
+ *
+ * <p>The file is memory-mapped and scanned byte by byte rather than through a StAX reader,
+ * because StAX only reports character offsets and those cannot be turned back into file
+ * positions once the text contains multi-byte UTF-8.  Only {@code DIV} and {@code HEAD} tags
+ * are looked at; everything else is skipped without allocating.
+ */
+public class HierarchyExtractor {
+
+    public static final String HIERARCHY_FILE = "hierarchy.csv";
+
+    /** One {@code DIVn} element of the title. */
+    public static class Node {
+        private int ordinal;
+        private int parent = -1;
+        private int level;
+        private String type;
+        private String identifier;
+        private String heading;
+        private long start;
+        private long end;
+
+        /** Row number, in document order. */
+        public int getOrdinal() { return ordinal; }
+        /** Row number of the enclosing division, {@code -1} for the root. */
+        public int getParent() { return parent; }
+        public int getLevel() { return level; }
+        /** {@code TITLE}, {@code CHAPTER}, {@code SUBCHAP}, {@code PART}, {@code SUBPART}, {@code SECTION}, ... */
+        public String getType() { return type; }
+        public String getIdentifier() { return identifier; }
+        public String getHeading() { return heading; }
+        /** Byte offset of the opening {@code <DIVn}. */
+        public long getStart() { return start; }
+        /** Byte offset just past the closing {@code </DIVn>}. */
+        public long getEnd() { return end; }
+        public long getLength() { return end - start; }
+    }
+
+    private static final byte[] COMMENT_OPEN = ascii("<!--");
+    private static final byte[] COMMENT_CLOSE = ascii("-->");
+    private static final byte[] CDATA_OPEN = ascii("<![CDATA[");
+    private static final byte[] CDATA_CLOSE = ascii("]]>");
+    private static final byte[] HEAD = ascii("HEAD");
+    private static final byte[] HEAD_CLOSE = ascii("</HEAD>");
+
+    /* --------------------------------------------------------------- */
+    /** {@code hierarchy.csv} in the directory of {@code titleXml}. */
+    public static Path hierarchyPath(Path titleXml) {
+        return titleXml.toAbsolutePath().resolveSibling(HIERARCHY_FILE);
+    }
+
+    /** Extract the hierarchy of {@code titleXml} and write it to {@link #hierarchyPath}. */
+    public List<Node> extractAndSave(Path titleXml) throws IOException {
+        List<Node> nodes = extract(titleXml);
+        Path csv = hierarchyPath(titleXml);
+        write(nodes, csv);
+        Path relative = currentWorkingDirectoryPath == null ? csv : currentWorkingDirectoryPath.relativize(csv.normalize());
+        System.out.printf("\tWrote %,7d hierarchy rows to .../%s\n", nodes.size(), relative);
+        return nodes;
+    }
+
+    public List<Node> extract(Path titleXml) throws IOException {
+        try (FileChannel channel = FileChannel.open(titleXml, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Title XML larger than 2 GB cannot be mapped in one piece: " + titleXml);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return scan(buffer);
+        }
+    }
+
+    /** Scan the bytes between position and limit; offsets are relative to position 0. */
+    public List<Node> scan(ByteBuffer buf) {
+        List<Node> nodes = new ArrayList<>();
+        Deque<Node> open = new ArrayDeque<>();
+        Node awaitingHead = null;
+        int limit = buf.limit();
+        int i = buf.position();
+        while (i < limit) {
+            if (buf.get(i) != '<') {
+                i++;
+                continue;
+            }
+            if (startsWith(buf, i, COMMENT_OPEN)) {
+                i = indexOf(buf, i + COMMENT_OPEN.length, COMMENT_CLOSE) + COMMENT_CLOSE.length;
+                continue;
+            }
+            if (startsWith(buf, i, CDATA_OPEN)) {
+                i = indexOf(buf, i + CDATA_OPEN.length, CDATA_CLOSE) + CDATA_CLOSE.length;
+                continue;
+            }
+            int tagEnd = endOfTag(buf, i + 1, limit);
+            byte second = i + 1 < limit ? buf.get(i + 1) : 0;
+            if (second == '?' || second == '!') {
+                i = tagEnd + 1;
+                continue;
+            }
+            boolean closing = second == '/';
+            int nameStart = closing ? i + 2 : i + 1;
+            int nameEnd = nameStart;
+            while (nameEnd < tagEnd && !isNameEnd(buf.get(nameEnd))) nameEnd++;
+
+            if (isDiv(buf, nameStart, nameEnd)) {
+                if (closing) {
+                    if (!open.isEmpty()) {
+                        Node node = open.pop();
+                        node.end = tagEnd + 1;
+                        if (node == awaitingHead) awaitingHead = null;
+                    }
+                } else {
+                    String tag = new String(bytes(buf, nameEnd, tagEnd), StandardCharsets.UTF_8);
+                    Node node = new Node();
+                    node.ordinal = nodes.size();
+                    node.parent = open.isEmpty() ? -1 : open.peek().ordinal;
+                    node.level = open.size();
+                    node.type = attribute(tag, "TYPE");
+                    node.identifier = attribute(tag, "N");
+                    node.start = i;
+                    nodes.add(node);
+                    if (buf.get(tagEnd - 1) == '/') {
+                        node.end = tagEnd + 1;
+                    } else {
+                        open.push(node);
+                        awaitingHead = node;
+                    }
+                }
+            } else if (!closing && awaitingHead != null && equals(buf, nameStart, nameEnd, HEAD)
+                    && buf.get(tagEnd - 1) != '/') {
+                int close = indexOf(buf, tagEnd + 1, HEAD_CLOSE);
+                awaitingHead.heading = text(bytes(buf, tagEnd + 1, Math.min(close, limit)));
+                awaitingHead = null;
+                i = close + HEAD_CLOSE.length;
+                continue;
+            }
+            i = tagEnd + 1;
+        }
+        for (Node unclosed : open) unclosed.end = limit;
+        return nodes;
+    }
+
+    /* --------------------------------------------------------------- */
+    /**
+     * Write the rows as {@code "ordinal","parent","level","type","identifier","heading","start","end"},
+     * through a temporary file so the query service never reads half a hierarchy.
+     */
+    public static void write(List<Node> nodes, Path csv) throws IOException {
+        Path parent = csv.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path partial = Files.createTempFile(parent, csv.getFileName().toString(), ".tmp");
+        try {
+            try (PrintStream out = new PrintStream(partial.toFile(), StandardCharsets.UTF_8)) {
+                for (Node node : nodes) {
+                    out.printf("\"%d\",\"%d\",\"%d\",\"%s\",\"%s\",\"%s\",\"%d\",\"%d\"\n",
+                               node.ordinal, node.parent, node.level,
+                               quote(node.type), quote(node.identifier), quote(node.heading),
+                               node.start, node.end);
+                }
+                if (out.checkError()) throw new IOException("Could not write " + partial);
+            }
+            Files.move(partial, csv, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+    }
+
+    /** Read rows written by {@link #write}. */
+    public static List<Node> read(Path csv) throws IOException {
+        List<Node> nodes = new ArrayList<>();
+        for (String line : Files.readAllLines(csv, StandardCharsets.UTF_8)) {
+            if (line.isBlank()) continue;
+            List<String> f = Utils.parseCsvLine(line);
+            Node node = new Node();
+            node.ordinal = Integer.parseInt(f.get(0));
+            node.parent = Integer.parseInt(f.get(1));
+            node.level = Integer.parseInt(f.get(2));
+            node.type = emptyToNull(f.get(3));
+            node.identifier = emptyToNull(f.get(4));
+            node.heading = emptyToNull(f.get(5));
+            node.start = Long.parseLong(f.get(6));
+            node.end = Long.parseLong(f.get(7));
+            nodes.add(node);
+        }
+        return nodes;
+    }
+
+    /** The bytes of one division, read by seeking into the stored title XML. */
+    public static ByteBuffer read(Path titleXml, Node node) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) node.getLength());
+        try (FileChannel channel = FileChannel.open(titleXml, StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, node.start + buffer.position()) < 0) break;
+            }
+        }
+        return buffer.flip();
+    }
+
+    /* --------------------------------------------------------------- */
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static boolean startsWith(ByteBuffer buf, int i, byte[] prefix) {
+        if (i + prefix.length > buf.limit()) return false;
+        for (int k = 0; k < prefix.length; k++) {
+            if (buf.get(i + k) != prefix[k]) return false;
+        }
+        return true;
+    }
+
+    /** Index of {@code needle} at or after {@code from}, or the limit when it does not occur. */
+    private static int indexOf(ByteBuffer buf, int from, byte[] needle) {
+        int last = buf.limit() - needle.length;
+        for (int i = from; i <= last; i++) {
+            if (buf.get(i) == needle[0] && startsWith(buf, i, needle)) return i;
+        }
+        return buf.limit();
+    }
+
+    /** Index of the {@code >} closing the tag, skipping quoted attribute values. */
+    private static int endOfTag(ByteBuffer buf, int i, int limit) {
+        byte quote = 0;
+        for (; i < limit; i++) {
+            byte b = buf.get(i);
+            if (quote != 0) {
+                if (b == quote) quote = 0;
+            } else if (b == '"' || b == '\'') {
+                quote = b;
+            } else if (b == '>') {
+                return i;
+            }
+        }
+        return limit - 1;
+    }
+
+    private static boolean isNameEnd(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '/' || b == '>';
+    }
+
+    /** {@code DIV} followed by one or more digits. */
+    private static boolean isDiv(ByteBuffer buf, int start, int end) {
+        if (end - start < 4 || buf.get(start) != 'D' || buf.get(start + 1) != 'I' || buf.get(start + 2) != 'V') return false;
+        for (int k = start + 3; k < end; k++) {
+            byte b = buf.get(k);
+            if (b < '0' || b > '9') return false;
+        }
+        return true;
+    }
+
+    private static boolean equals(ByteBuffer buf, int start, int end, byte[] name) {
+        return end - start == name.length && startsWith(buf, start, name);
+    }
+
+    private static byte[] bytes(ByteBuffer buf, int start, int end) {
+        byte[] bytes = new byte[Math.max(0, end - start)];
+        buf.get(start, bytes);
+        return bytes;
+    }
+
+    private static String attribute(String tag, String name) {
+        int i = 0;
+        while ((i = tag.indexOf(name, i)) >= 0) {
+            int eq = i + name.length();
+            boolean boundary = i == 0 || Character.isWhitespace(tag.charAt(i - 1));
+            if (boundary && eq + 1 < tag.length() && tag.charAt(eq) == '=') {
+                char quote = tag.charAt(eq + 1);
+                int close = tag.indexOf(quote, eq + 2);
+                if (close > 0) return decodeEntities(tag.substring(eq + 2, close)).trim();
+            }
+            i = eq;
+        }
+        return null;
+    }
+
+    /** Heading text: markup removed, entities decoded, whitespace collapsed. */
+    private static String text(byte[] bytes) {
+        String s = new String(bytes, StandardCharsets.UTF_8).replaceAll("<[^>]*>", "");
+        return decodeEntities(s).replaceAll("\\s+", " ").trim();
+    }
+
+    private static String decodeEntities(String s) {
+        if (s.indexOf('&') < 0) return s;
+        StringBuilder out = new StringBuilder(s.length());
+        int i = 0;
+        while (i < s.length()) {
+            char c = s.charAt(i);
+            int semi = c == '&' ? s.indexOf(';', i) : -1;
+            if (semi < 0 || semi - i > 10) {
+                out.append(c);
+                i++;
+                continue;
+            }
+            String entity = s.substring(i + 1, semi);
+            switch (entity) {
+                case "amp":  out.append('&'); break;
+                case "lt":   out.append('<'); break;
+                case "gt":   out.append('>'); break;
+                case "quot": out.append('"'); break;
+                case "apos": out.append('\''); break;
+                default:
+                    try {
+                        if (entity.startsWith("#x") || entity.startsWith("#X")) out.appendCodePoint(Integer.parseInt(entity.substring(2), 16));
+                        else if (entity.startsWith("#")) out.appendCodePoint(Integer.parseInt(entity.substring(1)));
+                        else out.append('&').append(entity).append(';');
+                    } catch (IllegalArgumentException e) {
+                        out.append('&').append(entity).append(';');
+                    }
+            }
+            i = semi + 1;
+        }
+        return out.toString();
+    }
+
+    private static String quote(String s) {
+        return s == null ? "" : s.replace("\"", "\"\"");
+    }
+
+    private static String emptyToNull(String s) {
+        return s.isEmpty() ? null : s;
+    }
+}
@@ -0,0 +1,279 @@
+package org.jaa.takehome.xml;
+
+import org.jaa.takehome.analytics.Utf8Tokenizer;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Streaming structural diff of two versions of a chapter or title XML document.
+ *
+ * <p>Both documents are read side by side with a StAX cursor, one {@code DIV8} section at a
+ * time.  Each section is reduced to its identifier ({@code N}, e.g. "§ 1.1"), heading, word
+ * count and a digest of its markup and whitespace-normalized text; the text itself is dropped
+ * as soon as the section ends.  Sections are aligned on their identifier: while both sides
+ * stay in step they are compared directly, and a section only seen on one side waits in a
+ * pending map (summary only) until its counterpart turns up.  Whatever is still pending at the
+ * end was added or removed.  Memory is one section's text plus the summaries of sections that
+ * are out of step, never a DOM.
+ */
+public class SectionDiff {
+
+    public enum Kind { ADDED, REMOVED, MODIFIED }
+
+    /** One changed section. */
+    public static class Change {
+        private final Kind kind;
+        private final String id;
+        private final String heading;
+        private final long wordsBefore;
+        private final long wordsAfter;
+
+        Change(Kind kind, String id, String heading, long wordsBefore, long wordsAfter) {
+            this.kind = kind;
+            this.id = id;
+            this.heading = heading;
+            this.wordsBefore = wordsBefore;
+            this.wordsAfter = wordsAfter;
+        }
+
+        public Kind getKind() { return kind; }
+        public String getId() { return id; }
+        public String getHeading() { return heading; }
+        public long getWordsBefore() { return wordsBefore; }
+        public long getWordsAfter() { return wordsAfter; }
+        public long getWordDelta() { return wordsAfter - wordsBefore; }
+
+        @Override
+        public String toString() {
+            return kind + " " + id + " (" + wordsBefore + " → " + wordsAfter + " words)";
+        }
+    }
+
+    /** Change list plus totals for one comparison. */
+    public static class Result {
+        private final List<Change> changes = new ArrayList<>();
+        private int sectionsBefore;
+        private int sectionsAfter;
+        private int unchanged;
+
+        public List<Change> getChanges() { return changes; }
+        public int getSectionsBefore() { return sectionsBefore; }
+        public int getSectionsAfter() { return sectionsAfter; }
+        public int getUnchanged() { return unchanged; }
+
+        public long getWordDelta() {
+            long delta = 0;
+            for (Change change : changes) delta += change.getWordDelta();
+            return delta;
+        }
+
+        public int count(Kind kind) {
+            int n = 0;
+            for (Change change : changes) if (change.kind == kind) n++;
+            return n;
+        }
+    }
+
+    /* --------------------------------------------------------------- */
+    public Result diff(Path before, Path after) throws IOException {
+        try (InputStream left = new BufferedInputStream(Files.newInputStream(before), 1 << 16);
+             InputStream right = new BufferedInputStream(Files.newInputStream(after), 1 << 16)) {
+            return diff(left, right);
+        }
+    }
+
+    /** Compare two documents (both streams are left open). */
+    public Result diff(InputStream before, InputStream after) throws IOException {
+        Result result = new Result();
+        Map<String, Section> pendingBefore = new LinkedHashMap<>();
+        Map<String, Section> pendingAfter = new LinkedHashMap<>();
+        try (SectionReader left = new SectionReader(before); SectionReader right = new SectionReader(after)) {
+            Section a = left.next();
+            Section b = right.next();
+            while (a != null || b != null) {
+                if (a != null && b != null && a.id.equals(b.id)) {
+                    compare(a, b, result);
+                    a = left.next();
+                    b = right.next();
+                    continue;
+                }
+                if (a != null) {
+                    Section match = pendingAfter.remove(a.id);
+                    if (match != null) compare(a, match, result);
+                    else putPending(pendingBefore, a);
+                    a = left.next();
+                }
+                if (b != null) {
+                    Section match = pendingBefore.remove(b.id);
+                    if (match != null) compare(match, b, result);
+                    else putPending(pendingAfter, b);
+                    b = right.next();
+                }
+            }
+            result.sectionsBefore = left.sections;
+            result.sectionsAfter = right.sections;
+        } catch (XMLStreamException e) {
+            throw new IOException("Malformed XML: " + e.getMessage(), e);
+        }
+        for (Section s : pendingBefore.values()) {
+            result.changes.add(new Change(Kind.REMOVED, s.id, s.heading, s.words, 0));
+        }
+        for (Section s : pendingAfter.values()) {
+            result.changes.add(new Change(Kind.ADDED, s.id, s.heading, 0, s.words));
+        }
+        return result;
+    }
+
+    /* --------------------------------------------------------------- */
+    private static void compare(Section a, Section b, Result result) {
+        if (Arrays.equals(a.digest, b.digest)) {
+            result.unchanged++;
+        } else {
+            result.changes.add(new Change(Kind.MODIFIED, b.id, b.heading, a.words, b.words));
+        }
+    }
+
+    /** A repeated identifier (e.g. several "[Reserved]" sections) must not displace the earlier one. */
+    private static void putPending(Map<String, Section> pending, Section section) {
+        String key = section.id;
+        for (int n = 2; pending.containsKey(key); n++) key = section.id + "#" + n;
+        pending.put(key, section);
+    }
+
+    /** Everything kept about a section once its text has been read. */
+    private static final class Section {
+        final String id;
+        final String heading;
+        final long words;
+        final byte[] digest;
+
+        Section(String id, String heading, long words, byte[] digest) {
+            this.id = id;
+            this.heading = heading;
+            this.words = words;
+            this.digest = digest;
+        }
+    }
+
+    /** Cursor over the {@code DIV8} sections of one document. */
+    private static final class SectionReader implements Closeable {
+        private final XMLStreamReader reader;
+        private final MessageDigest digest;
+        private final Utf8Tokenizer tokenizer = new Utf8Tokenizer();
+        /** UTF-8 text of the current section, for the word count; reused between sections. */
+        private ByteBuffer text = ByteBuffer.allocate(1 << 16);
+        /** Character events since the last tag, joined before they are normalized. */
+        private final StringBuilder raw = new StringBuilder();
+        int sections;
+
+        SectionReader(InputStream in) throws XMLStreamException {
+            this.reader = TitleXmlSplitter.newInputFactory().createXMLStreamReader(in);
+            try {
+                this.digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /** The next section, or {@code null} at the end of the document. */
+        Section next() throws XMLStreamException {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && "DIV8".equals(reader.getLocalName())) {
+                    sections++;
+                    return readSection();
+                }
+            }
+            return null;
+        }
+
+        private Section readSection() throws XMLStreamException {
+            String id = reader.getAttributeValue(null, "N");
+            String heading = null;
+            StringBuilder head = null;
+            digest.reset();
+            text.clear();
+            int depth = 1;
+            raw.setLength(0);
+            while (depth > 0 && reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        flushText(head);
+                        depth++;
+                        update(reader.getLocalName());
+                        for (int i = 0; i < reader.getAttributeCount(); i++) {
+                            update(reader.getAttributeLocalName(i) + "=" + reader.getAttributeValue(i));
+                        }
+                        if (depth == 2 && heading == null && "HEAD".equals(reader.getLocalName())) {
+                            head = new StringBuilder();
+                        }
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        // The parser may hand one text node over in several pieces, split at
+                        // entity references or buffer boundaries that depend on the file offset.
+                        raw.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        flushText(head);
+                        depth--;
+                        update("/");
+                        if (head != null && depth == 1) {
+                            heading = head.toString().trim();
+                            head = null;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            text.flip();
+            long words = tokenizer.count(text);
+            if (id == null || id.isBlank()) id = heading != null ? heading : "#" + sections;
+            return new Section(id.trim(), heading, words, digest.digest());
+        }
+
+        /** Normalize the text collected since the last tag, as one piece, into the digest and word text. */
+        private void flushText(StringBuilder head) {
+            if (raw.length() == 0) return;
+            String normalized = raw.toString().trim().replaceAll("\\s+", " ");
+            raw.setLength(0);
+            if (normalized.isEmpty()) return;
+            if (head != null) head.append(normalized).append(' ');
+            update(normalized);
+            appendText(normalized);
+        }
+
+        private void update(String s) {
+            digest.update(s.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+
+        /** Markup characters are blanked so the tokenizer does not mistake parsed text for tags or entities. */
+        private void appendText(String s) {
+            byte[] bytes = s.replace('<', ' ').replace('&', ' ').getBytes(StandardCharsets.UTF_8);
+            if (text.remaining() < bytes.length + 1) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(text.capacity() * 2, text.position() + bytes.length + 1));
+                text.flip();
+                bigger.put(text);
+                text = bigger;
+            }
+            text.put(bytes).put((byte) ' ');
+        }
+
+        @Override
+        public void close() {
+            try { reader.close(); } catch (XMLStreamException e) { /**/ }
+        }
+    }
+}
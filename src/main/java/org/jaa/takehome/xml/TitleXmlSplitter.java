@@ -0,0 +1,228 @@
+package org.jaa.takehome.xml;
+
+import org.jaa.takehome.cache.ContentCache;
+
+import javax.xml.stream.*;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Streaming (StAX) splitter for a full eCFR title XML document.
+ *
+ * <p>The document is read exactly once; every {@code <DIV3 TYPE="CHAPTER" N="...">}
+ * subtree whose chapter number appears in the supplied target map is copied, event by
+ * event, into each of the requested chapter files.  When a parts and/or sections directory
+ * is configured, every {@code DIV5 TYPE="PART"} and {@code DIV8 TYPE="SECTION"} is written
+ * to its own file in the same pass ({@code part-301.xml}, {@code section-301.1.xml}).
+ * Nothing but the current event is held in memory, so titles of several hundred MB split
+ * in constant space.
+ *
+ * <p>The title number, heading and amendment date found on the way are reported back in
+ * the {@link Result}, which is how the offline ingestion fills in its
+ * {@code TitleDescriptor}s.
+ */
+public class TitleXmlSplitter {
+
+    /** Summary of one pass over a title document. */
+    public static class Result {
+        private String titleNumber;
+        private String titleHeading;
+        private String amendedDate;
+        private final Set<String> chaptersFound = new LinkedHashSet<>();
+        private final List<Path> filesWritten = new ArrayList<>();
+        private int partFiles;
+        private int sectionFiles;
+
+        public String getTitleNumber() { return titleNumber; }
+        public String getTitleHeading() { return titleHeading; }
+        public String getAmendedDate() { return amendedDate; }
+        public Set<String> getChaptersFound() { return chaptersFound; }
+        /** Chapter files written. */
+        public List<Path> getFilesWritten() { return filesWritten; }
+        public int getPartFiles() { return partFiles; }
+        public int getSectionFiles() { return sectionFiles; }
+    }
+
+    private final Path partsDirectory;
+    private final Path sectionsDirectory;
+
+    /** Splitter that writes chapter files only. */
+    public TitleXmlSplitter() {
+        this(null, null);
+    }
+
+    /**
+     * @param partsDirectory    where {@code part-*.xml} files go, or {@code null} to skip parts
+     * @param sectionsDirectory where {@code section-*.xml} files go, or {@code null} to skip sections
+     */
+    public TitleXmlSplitter(Path partsDirectory, Path sectionsDirectory) {
+        this.partsDirectory = partsDirectory;
+        this.sectionsDirectory = sectionsDirectory;
+    }
+
+    /** Splitter writing parts and sections next to the title XML, under {@code parts/} and {@code sections/}. */
+    public static TitleXmlSplitter withPartsAndSections(Path titleXml) {
+        Path titleDir = titleXml.toAbsolutePath().getParent();
+        return new TitleXmlSplitter(titleDir.resolve("parts"), titleDir.resolve("sections"));
+    }
+
+    /* --------------------------------------------------------------- */
+    /** Split the title XML stored at {@code titleXml}. */
+    public Result split(Path titleXml, Map<String, List<Path>> chapterTargets) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(titleXml), 1 << 16)) {
+            return split(in, chapterTargets);
+        }
+    }
+
+    /**
+     * Split a title XML stream.
+     *
+     * @param in             the full title document (left open)
+     * @param chapterTargets chapter number (e.g. {@code "IV"}) → files that should receive that chapter
+     */
+    public Result split(InputStream in, Map<String, List<Path>> chapterTargets) throws IOException {
+        Result result = new Result();
+        XMLEventReader reader = null;
+        // Sinks currently receiving events; a section sink sits inside a part sink inside a chapter sink.
+        Deque<Sink> open = new ArrayDeque<>();
+        try {
+            reader = newInputFactory().createXMLEventReader(in);
+            int depth = 0;
+            int titleDepth = -1;
+            StringBuilder text = null;
+            String textTarget = null;
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (event.isStartElement()) {
+                    depth++;
+                    StartElement element = event.asStartElement();
+                    String name = element.getName().getLocalPart();
+                    String type = attribute(element, "TYPE");
+                    if ("DIV1".equals(name) && "TITLE".equalsIgnoreCase(type)) {
+                        result.titleNumber = attribute(element, "N");
+                        titleDepth = depth;
+                    } else if ("HEAD".equals(name) && depth == titleDepth + 1 && result.titleHeading == null) {
+                        text = new StringBuilder();
+                        textTarget = "HEAD";
+                    } else if ("AMDDATE".equals(name) && result.amendedDate == null) {
+                        text = new StringBuilder();
+                        textTarget = "AMDDATE";
+                    } else if ("DIV3".equals(name) && "CHAPTER".equalsIgnoreCase(type)) {
+                        String chapter = attribute(element, "N");
+                        if (chapter != null) {
+                            chapter = chapter.trim();
+                            result.chaptersFound.add(chapter);
+                            for (Path target : chapterTargets.getOrDefault(chapter, Collections.emptyList())) {
+                                open.push(new Sink(target, depth, Sink.CHAPTER));
+                            }
+                        }
+                    } else if (partsDirectory != null && "DIV5".equals(name) && "PART".equalsIgnoreCase(type)) {
+                        String part = attribute(element, "N");
+                        if (part != null) {
+                            open.push(new Sink(partsDirectory.resolve("part-" + safeName(part) + ".xml"), depth, Sink.PART));
+                        }
+                    } else if (sectionsDirectory != null && "DIV8".equals(name) && "SECTION".equalsIgnoreCase(type)) {
+                        String section = attribute(element, "N");
+                        if (section != null) {
+                            open.push(new Sink(sectionsDirectory.resolve("section-" + safeName(section) + ".xml"), depth, Sink.SECTION));
+                        }
+                    }
+                } else if (event.isCharacters() && text != null) {
+                    text.append(event.asCharacters().getData());
+                }
+
+                for (Sink sink : open) sink.writer.add(event);
+
+                if (event.isEndElement()) {
+                    if (text != null) {
+                        String value = text.toString().trim();
+                        if ("HEAD".equals(textTarget)) result.titleHeading = value;
+                        else result.amendedDate = value;
+                        text = null;
+                        textTarget = null;
+                    }
+                    while (!open.isEmpty() && open.peek().depth == depth) {
+                        Sink sink = open.pop();
+                        sink.close();
+                        ContentCache.shared().invalidate(sink.path);
+                        if (sink.kind == Sink.CHAPTER) result.filesWritten.add(sink.path);
+                        else if (sink.kind == Sink.PART) result.partFiles++;
+                        else result.sectionFiles++;
+                    }
+                    depth--;
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Malformed title XML: " + e.getMessage(), e);
+        } finally {
+            for (Sink sink : open) sink.closeQuietly();
+            if (reader != null) {
+                try { reader.close(); } catch (XMLStreamException e) { /**/ }
+            }
+        }
+        return result;
+    }
+
+    /* --------------------------------------------------------------- */
+    private static String attribute(StartElement element, String name) {
+        Attribute attr = element.getAttributeByName(new javax.xml.namespace.QName(name));
+        return attr == null ? null : attr.getValue();
+    }
+
+    /** "§ 301.1" → "301.1", "1-199" → "1-199", anything odd → '_'. */
+    public static String safeName(String identifier) {
+        String trimmed = identifier.replace("§", "").trim();
+        return trimmed.replaceAll("[^0-9A-Za-z.\\-]", "_");
+    }
+
+    /** eCFR XML carries no DTD we need; keep the parser from ever reaching out for one. */
+    static XMLInputFactory newInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        return factory;
+    }
+
+    /** One output file being written, closed when the element that opened it ends. */
+    private static class Sink {
+        static final int CHAPTER = 0;
+        static final int PART = 1;
+        static final int SECTION = 2;
+
+        private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+        private static final XMLEventFactory EVENT_FACTORY = XMLEventFactory.newInstance();
+
+        private final Path path;
+        private final int depth;
+        private final int kind;
+        private final OutputStream out;
+        private final XMLEventWriter writer;
+
+        Sink(Path path, int depth, int kind) throws IOException, XMLStreamException {
+            this.path = path;
+            this.depth = depth;
+            this.kind = kind;
+            Files.createDirectories(path.toAbsolutePath().getParent());
+            this.out = new BufferedOutputStream(Files.newOutputStream(path), kind == CHAPTER ? 1 << 16 : 1 << 13);
+            this.writer = OUTPUT_FACTORY.createXMLEventWriter(out, "UTF-8");
+            writer.add(EVENT_FACTORY.createStartDocument("UTF-8", "1.0"));
+        }
+
+        void close() throws XMLStreamException, IOException {
+            writer.add(EVENT_FACTORY.createEndDocument());
+            writer.close();
+            out.close();
+        }
+
+        void closeQuietly() {
+            try { writer.close(); } catch (XMLStreamException e) { /**/ }
+            try { out.close(); } catch (IOException e) { /**/ }
+        }
+    }
+}